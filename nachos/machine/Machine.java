@@ -6,6 +6,7 @@ import nachos.security.*;
 import nachos.ag.*;
 
 import java.io.File;
+import java.util.LinkedList;
 
 /**
  * The master class of the simulated machine. Processes command line arguments,
@@ -104,10 +105,22 @@ public final class Machine {
      */
     public static void halt() {
 	System.out.print("Machine halting!\n\n");
+	for (Runnable handler : haltHandlers)
+	    handler.run();
 	stats.print();
 	terminate();
     }
 
+    /**
+     * Add a handler to be run by <tt>halt()</tt> before the stats are
+     * printed, for example to print a report kept by the kernel.
+     *
+     * @param	handler	the handler to run.
+     */
+    public static void addHaltHandler(Runnable handler) {
+	haltHandlers.add(handler);
+    }
+
     /**
      * Return an array containing all command line arguments.
      *
@@ -416,6 +429,9 @@ public final class Machine {
 
     private static String[] args = null;
 
+    private static LinkedList<Runnable> haltHandlers =
+	new LinkedList<Runnable>();
+
     private static Stats stats = new Stats();
 
     private static int numPhysPages = -1;
@@ -24,6 +24,9 @@ public class StubFileSystem implements FileSystem {
     public StubFileSystem(Privilege privilege, File directory) {
 	this.privilege = privilege;
 	this.directory = directory;
+
+	delaySlack = Config.getInteger("StubFileSystem.delaySlack", 0);
+	Lib.assertTrue(delaySlack >= 0);
     }
     
     public OpenFile open(String name, boolean truncate) {
@@ -67,7 +70,7 @@ public class StubFileSystem implements FileSystem {
     private void delay() {
 	long time = Machine.timer().getTime();
 	int amount = 1000;
-	ThreadedKernel.alarm.waitUntil(amount);
+	ThreadedKernel.alarm.waitUntil(amount, delaySlack);
 	Lib.assertTrue(Machine.timer().getTime() >= time+amount);
     }
 
@@ -166,6 +169,7 @@ public class StubFileSystem implements FileSystem {
     private int openCount = 0;
     private static final int maxOpenFiles = 16;
     
+    private long delaySlack;
     private Privilege privilege;
     private File directory;
 
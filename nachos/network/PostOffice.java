@@ -14,6 +14,12 @@ import nachos.threads.*;
  * from the network and to place them in the appropriate queues. This cannot
  * be done in the receive interrupt handler because each queue (implemented
  * with a <tt>SynchList</tt>) is protected by a lock.
+ *
+ * <p>
+ * Each queue holds at most <tt>PostOffice.mailboxCapacity</tt> messages.
+ * Messages that arrive for a full queue are dropped, as if lost by the
+ * network, so a flood on one port neither grows memory without limit nor
+ * holds up delivery to the other ports.
  */
 public class PostOffice {
     /**
@@ -26,9 +32,10 @@ public class PostOffice {
 	messageSent = new Semaphore(0);
 	sendLock = new Lock();
 
+	int capacity = Config.getInteger("PostOffice.mailboxCapacity", 64);
 	queues = new SynchList[MailMessage.portLimit];
 	for (int i=0; i<queues.length; i++)
-	    queues[i] = new SynchList();
+	    queues[i] = new SynchList(capacity);
 
 	Runnable receiveHandler = new Runnable() {
 	    public void run() { receiveInterrupt(); }
@@ -66,6 +73,39 @@ public class PostOffice {
 	return mail;
     }
 
+    /**
+     * Retrieve a message on the specified port, waiting at most <i>ticks</i>
+     * clock ticks for one to arrive.
+     *
+     * @param	port	the port on which to wait for a message.
+     * @param	ticks	the maximum number of clock ticks to wait.
+     *
+     * @return	the message received, or <tt>null</tt> if none arrived in
+     *		time.
+     */
+    public MailMessage receive(int port, long ticks) {
+	Lib.assertTrue(port >= 0 && port < queues.length);
+
+	Lib.debug(dbgNet, "waiting " + ticks + " ticks for mail on port "
+		  + port);
+
+	MailMessage mail = (MailMessage) queues[port].poll(ticks);
+
+	if (mail != null && Lib.test(dbgNet))
+	    System.out.println("got mail on port " + port + ": " + mail);
+
+	return mail;
+    }
+
+    /**
+     * Return the number of messages dropped because their mailbox was full.
+     *
+     * @return	the number of dropped messages.
+     */
+    public long getDropped() {
+	return dropped;
+    }
+
     /**
      * Wait for incoming messages, and then put them in the correct mailbox.
      */
@@ -89,7 +129,11 @@ public class PostOffice {
 				   + ": " + mail);
 
 	    // atomically add message to the mailbox and wake a waiting thread
-	    queues[mail.dstPort].add(mail);
+	    if (!queues[mail.dstPort].offer(mail)) {
+		Lib.debug(dbgNet, "mailbox full, dropping mail to port "
+			  + mail.dstPort);
+		dropped++;
+	    }
 	}
     }
 
@@ -126,6 +170,7 @@ public class PostOffice {
     }
 
     private SynchList[] queues;
+    private long dropped = 0;
     private Semaphore messageReceived;	// V'd when a message can be dequeued
     private Semaphore messageSent;	// V'd when a message can be queued
     private Lock sendLock;
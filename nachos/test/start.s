@@ -68,3 +68,4 @@ name:				; \
 	SYSCALLSTUB(connect, syscallConnect)
 	SYSCALLSTUB(accept, syscallAccept)
 	SYSCALLSTUB(sleep, syscallSleep)
+	SYSCALLSTUB(setrt, syscallSetRealTime)
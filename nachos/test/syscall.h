@@ -25,6 +25,7 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallSetRealTime	14
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -260,6 +261,17 @@ int accept(int port);
  * Make the UserProcess sleep for a few seconds.
  */
 int sleep(int time);
+
+/**
+ * Make the calling thread a periodic real-time thread. In every period of
+ * period ticks it may run for up to budget ticks ahead of all best-effort
+ * threads, and its deadline is the end of the period. A budget of 0 returns
+ * the thread to best-effort scheduling.
+ *
+ * Returns 0 on success, or -1 if the scheduler does not support real-time
+ * threads or admitting the thread would overcommit the processor.
+ */
+int setrt(int period, int budget);
 #endif /* START_S */
 
 #endif /* SYSCALL_H */
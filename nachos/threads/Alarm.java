@@ -2,12 +2,30 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.lang.management.ThreadInfo;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collections;
 
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
+ *
+ * <p>
+ * Besides putting threads to sleep, the alarm runs handlers at a given time,
+ * once or periodically, through cancelable <tt>Handle</tt>s. Pending alarms
+ * are kept in a hashed timing wheel: a ring of slots, each covering
+ * <tt>slotTicks</tt> ticks, where an alarm is filed under the slot its time
+ * falls in. Adding and cancelling an alarm take constant time, and a timer
+ * interrupt only looks at the slots that have passed since the last one.
+ * Alarms more than one turn of the wheel away stay in their slot until their
+ * turn comes round.
+ *
+ * <p>
+ * An alarm may be given <i>slack</i>, in which case it may go off up to that
+ * many ticks late. When a timer interrupt finds only alarms with slack due,
+ * and all of them can wait for the next interrupt, it holds them back; when
+ * any alarm has to go off, every due alarm goes off with it. Alarms whose
+ * windows overlap therefore go off together, and fewer interrupts wake
+ * threads.
  */
 public class Alarm {
     /**
@@ -27,7 +45,8 @@ public class Alarm {
      * The timer interrupt handler. This is called by the machine's timer
      * periodically (approximately every 500 clock ticks). Causes the current
      * thread to yield, forcing a context switch if there is another thread
-     * that should be run.
+     * that should be run, unless the scheduler reports that its time slice
+     * has not yet run out.
      */
     /**
      * 定时器中断处理程序。这是由机器的定时器调用的
@@ -38,26 +57,121 @@ public class Alarm {
     public void timerInterrupt() {
         boolean status=Machine.interrupt().disable();
         long currentTime=Machine.timer().getTime();//获取现在的时间
-        int size = list.size();//遍历链表，将时间到了的线程唤醒
-        if(size!=0){
-            for (int i=0;i<size;i++)
-            {
-                if(currentTime>=list.get(i).getTime())
-                {
-                    KThread thread=list.get(i).getThread();
-                    thread.ready();
-                    list.remove(i);
-                    size--;
-                    i--;
-                    currentTime=Machine.timer().getTime();
 
+        //只查看上次中断以来经过的槽，取出时间已到的闹钟
+        ArrayList<Handle> due = new ArrayList<Handle>();
+        long lastSlot = currentTime / slotTicks;
+        long firstSlot = Math.max(processedSlot, lastSlot - numSlots + 1);
+        for (long slot=firstSlot; slot<=lastSlot; slot++) {
+            Handle handle = slots[(int) (slot % numSlots)];
+            while (handle != null) {
+                Handle next = handle.next;
+                if (handle.time <= currentTime) {
+                    unlink(handle);
+                    due.add(handle);
                 }
+                handle = next;
             }
         }
-	    KThread.currentThread().yield();//
+        processedSlot = lastSlot;
+
+        //下一次中断最晚的时间；所有到期闹钟都能等到那时则推迟，否则一起触发
+        long nextInterrupt = currentTime + Stats.TimerTicks
+            + Stats.TimerTicks/20;
+        boolean mustFire = false;
+        for (Handle handle : due) {
+            if (handle.time + handle.slack < nextInterrupt) {
+                mustFire = true;
+                break;
+            }
+        }
+        if (!mustFire && !due.isEmpty()) {
+            //挂到当前槽，下次中断一定会再查看
+            for (Handle handle : due)
+                link(handle, lastSlot);
+            deferred += due.size();
+            due.clear();
+        }
+        if (!due.isEmpty()) {
+            fired += due.size();
+            firingInterrupts++;
+        }
+
+        //按时间顺序触发，周期闹钟重新加入时间轮
+        Collections.sort(due);
+        for (Handle handle : due) {
+            if (handle.period > 0) {
+                while (handle.time <= currentTime)
+                    handle.time += handle.period;
+                link(handle);
+            }
+            handle.handler.run();
+        }
+        //调度器认为当前线程的时间片用完时才让出
+        if (ThreadedKernel.scheduler.timeSliceExpired())
+            KThread.currentThread().yield();
         Machine.interrupt().restore(status);
     }
 
+    /**
+     * Run <i>handler</i> in the first timer interrupt at least <i>x</i> ticks
+     * from now. The handler runs with interrupts disabled, so it must not
+     * block.
+     *
+     * @param	x	the minimum number of clock ticks to wait.
+     * @param	handler	the handler to run.
+     * @return	a handle that can cancel the alarm.
+     */
+    public Handle schedule(long x, Runnable handler) {
+        return add(x, 0, 0, handler);
+    }
+
+    /**
+     * Run <i>handler</i> in a timer interrupt at least <i>x</i> and at most
+     * about <i>x</i> + <i>slack</i> ticks from now, chosen so that it runs
+     * together with other alarms. The handler runs with interrupts disabled,
+     * so it must not block.
+     *
+     * @param	x	the minimum number of clock ticks to wait.
+     * @param	slack	the number of ticks the alarm may go off late.
+     * @param	handler	the handler to run.
+     * @return	a handle that can cancel the alarm.
+     */
+    public Handle schedule(long x, long slack, Runnable handler) {
+        Lib.assertTrue(slack >= 0);
+
+        return add(x, 0, slack, handler);
+    }
+
+    /**
+     * Run <i>handler</i> every <i>period</i> ticks, starting at least
+     * <i>period</i> ticks from now, until the alarm is cancelled. Each run is
+     * timed from when the previous one was due rather than when it ran, so
+     * the alarm does not drift; runs that would fall between two timer
+     * interrupts are skipped. The handler runs with interrupts disabled, so
+     * it must not block.
+     *
+     * @param	period	the number of clock ticks between runs.
+     * @param	handler	the handler to run.
+     * @return	a handle that can cancel the alarm.
+     */
+    public Handle schedulePeriodic(long period, Runnable handler) {
+        Lib.assertTrue(period > 0);
+
+        return add(period, period, 0, handler);
+    }
+
+    private Handle add(long x, long period, long slack, Runnable handler) {
+        boolean status = Machine.interrupt().disable();
+
+        Handle handle = new Handle(Machine.timer().getTime() + x, period,
+                                   slack, handler);
+        link(handle);
+
+        Machine.interrupt().restore(status);
+        return handle;
+    }
+
     /**
      * Put the current thread to sleep for at least <i>x</i> ticks,
      * waking it up in the timer interrupt handler. The thread must be
@@ -87,43 +201,288 @@ public class Alarm {
      * @see nachos.machine.Timer#getTime()
      */
     public void waitUntil(long x) {
-	// for now, cheat just to get something working (busy waiting is bad)
+        waitUntil(x, 0);
+    }
+
+    /**
+     * Put the current thread to sleep for at least <i>x</i> ticks, and at
+     * most about <i>x</i> + <i>slack</i> ticks. Sleeps that do not need to
+     * end at a precise time, such as polling loops, should give some slack,
+     * so that their wakeups can be coalesced with others.
+     *
+     * @param	x	the minimum number of clock ticks to wait.
+     * @param	slack	the number of ticks the thread may sleep longer.
+     */
+    public void waitUntil(long x, long slack) {
+        Lib.assertTrue(slack >= 0);
+
         boolean status=Machine.interrupt().disable();//关中断
-	    long wakeTime = Machine.timer().getTime() + x;//计算唤醒时间
-        ThreadInfo threadInfo=new ThreadInfo(KThread.currentThread(),wakeTime);//线程及唤醒时间ThreadInfo
-        list.add(threadInfo);//链表保存threadinfo
-        KThread.currentThread().sleep();//sleep
+        final KThread thread = KThread.currentThread();
+        //到时间后把线程放回就绪队列
+        add(x, 0, slack, new Runnable() {
+                public void run() { thread.ready(); }
+            });
+        KThread.sleep();//sleep
         Machine.interrupt().restore(status);
+    }
 
-//	while (wakeTime > Machine.timer().getTime())
-//	    KThread.yield();
+    /**
+     * Put the current thread to sleep until it is taken off <i>waitQueue</i>
+     * and woken by another thread, or until at least <i>x</i> ticks have
+     * passed, whichever comes first. The current thread must already be
+     * waiting on <i>waitQueue</i>, and interrupts must be disabled.
+     *
+     * <p>
+     * On a timeout the thread is removed from <i>waitQueue</i> with
+     * <tt>ThreadQueue.remove()</tt>; if it is woken first, its alarm is
+     * cancelled in constant time. A queue that does not support
+     * <tt>remove()</tt> never times out.
+     *
+     * @param	waitQueue	the queue the current thread is waiting on.
+     * @param	x		the maximum number of clock ticks to wait.
+     * @return	<tt>true</tt> if the wait timed out.
+     */
+    public boolean sleepOn(final ThreadQueue waitQueue, long x) {
+        Lib.assertTrue(Machine.interrupt().disabled());
 
+        final KThread thread = KThread.currentThread();
+        final boolean[] timedOut = new boolean[1];
+        Handle handle = schedule(x, new Runnable() {
+                public void run() {
+                    //线程仍在等待队列中说明没有被唤醒过，超时
+                    if (waitQueue.remove(thread)) {
+                        timedOut[0] = true;
+                        thread.ready();
+                    }
+                }
+            });
+        KThread.sleep();
+
+        //被其他线程唤醒，取消定时
+        handle.cancel();
 
+        return timedOut[0];
     }
-    private LinkedList<ThreadInfo> list = new LinkedList();
 
     /**
-     *存储等待线程的信息，包括线程号和等待时间
-     *内部类,存放线程信息
+     * Return the number of alarms waiting to go off.
+     *
+     * @return	the number of pending alarms.
      */
-    private class ThreadInfo{
-        private KThread thread;
-        private long time;
-        public ThreadInfo(KThread thread,long time){
-            this.thread=thread;
-            this.time=time;
+    public int getPending() {
+        return pending;
+    }
+
+    /**
+     * Return the number of alarms that have gone off.
+     *
+     * @return	the number of alarms fired.
+     */
+    public long getFired() {
+        return fired;
+    }
+
+    /**
+     * Return the number of timer interrupts in which alarms went off.
+     * <tt>getFired()</tt> divided by this is the mean number of alarms that
+     * went off together.
+     *
+     * @return	the number of interrupts that fired alarms.
+     */
+    public long getFiringInterrupts() {
+        return firingInterrupts;
+    }
+
+    /**
+     * Return the number of times an alarm with slack that was due was held
+     * back to a later interrupt.
+     *
+     * @return	the number of deferrals.
+     */
+    public long getDeferred() {
+        return deferred;
+    }
+
+    /**
+     * Test that this module is working.
+     */
+    public static void selfTest() {
+        Alarm alarm = ThreadedKernel.alarm;
+
+        //让时钟走过若干个槽，再测试时间已过的等待
+        long start = Machine.timer().getTime();
+        alarm.waitUntil(3000);
+        Lib.assertTrue(Machine.timer().getTime() - start >= 3000);
+
+        //时间已到的等待应在下一次中断醒来，而不是等时间轮转一圈
+        for (long x : new long[] { 0, -1000 }) {
+            start = Machine.timer().getTime();
+            alarm.waitUntil(x);
+            Lib.assertTrue(Machine.timer().getTime() - start
+                           < 2*Stats.TimerTicks);
         }
-        public KThread getThread() {
-            return thread;
+
+        final boolean[] ran = new boolean[1];
+        alarm.schedule(-1000, new Runnable() {
+                public void run() { ran[0] = true; }
+            });
+        alarm.waitUntil(Stats.TimerTicks);
+        Lib.assertTrue(ran[0]);
+    }
+
+    /**
+     * Measure how well wakeups are coalesced. <i>numThreads</i> threads each
+     * sleep <i>numSleeps</i> times, for staggered lengths, first with no
+     * slack and then with <i>slack</i> ticks of slack; for each run the
+     * number of interrupts that woke threads and the mean number of threads
+     * woken together are printed.
+     *
+     * @param	numThreads	the number of sleeping threads.
+     * @param	numSleeps	the number of sleeps per thread.
+     * @param	slack		the slack of each sleep in the second run.
+     */
+    public static void benchmark(int numThreads, int numSleeps, long slack) {
+        runBenchmark(numThreads, numSleeps, 0);
+        runBenchmark(numThreads, numSleeps, slack);
+    }
+
+    private static void runBenchmark(int numThreads, final int numSleeps,
+                                     final long slack) {
+        Alarm alarm = ThreadedKernel.alarm;
+        long fired = alarm.fired;
+        long firingInterrupts = alarm.firingInterrupts;
+        long deferred = alarm.deferred;
+        long startTime = Machine.timer().getTime();
+
+        KThread[] threads = new KThread[numThreads];
+        for (int i=0; i<numThreads; i++) {
+            //睡眠时间错开，不合并时几乎每次中断都要唤醒线程
+            final long sleep = Stats.TimerTicks + 137 * i;
+            threads[i] = new KThread(new Runnable() {
+                    public void run() {
+                        for (int j=0; j<numSleeps; j++)
+                            ThreadedKernel.alarm.waitUntil(sleep, slack);
+                    }
+                }).setName("sleeper" + i);
         }
-        public void setThread(KThread thread) {
-            this.thread = thread;
+
+        for (int i=0; i<numThreads; i++)
+            threads[i].fork();
+        for (int i=0; i<numThreads; i++)
+            threads[i].join();
+
+        fired = alarm.fired - fired;
+        firingInterrupts = alarm.firingInterrupts - firingInterrupts;
+        System.out.println("Alarm: slack " + slack + ": "
+                           + firingInterrupts + " interrupts woke "
+                           + fired + " threads ("
+                           + String.format("%.2f", (double) fired
+                                           / Math.max(firingInterrupts, 1))
+                           + " per interrupt), "
+                           + (alarm.deferred - deferred) + " deferred, "
+                           + (Machine.timer().getTime() - startTime)
+                           + " ticks");
+    }
+
+    /** 把闹钟挂到它的时间所在的槽；时间已过的挂到下次中断会查看的槽 */
+    private void link(Handle handle) {
+        link(handle, Math.max(handle.time / slotTicks, processedSlot));
+    }
+
+    private void link(Handle handle, long absoluteSlot) {
+        int slot = (int) (absoluteSlot % numSlots);
+
+        handle.slot = slot;
+        handle.prev = null;
+        handle.next = slots[slot];
+        if (slots[slot] != null)
+            slots[slot].prev = handle;
+        slots[slot] = handle;
+        pending++;
+    }
+
+    private void unlink(Handle handle) {
+        if (handle.prev != null)
+            handle.prev.next = handle.next;
+        else
+            slots[handle.slot] = handle.next;
+        if (handle.next != null)
+            handle.next.prev = handle.prev;
+
+        handle.slot = -1;
+        handle.prev = handle.next = null;
+        pending--;
+    }
+
+    /**
+     * A pending alarm, which can be cancelled until it goes off.
+     */
+    public class Handle implements Comparable<Handle> {
+        Handle(long time, long period, long slack, Runnable handler) {
+            this.time = time;
+            this.period = period;
+            this.slack = slack;
+            this.handler = handler;
         }
-        public long getTime() {
-            return time;
+
+        /**
+         * Cancel this alarm, so that its handler does not run again.
+         *
+         * @return	<tt>true</tt> if the alarm was still pending.
+         */
+        public boolean cancel() {
+            boolean status = Machine.interrupt().disable();
+
+            boolean wasPending = isPending();
+            if (wasPending)
+                unlink(this);
+
+            Machine.interrupt().restore(status);
+            return wasPending;
         }
-        public void setTime(long time) {
-            this.time = time;
+
+        /**
+         * Test if this alarm is still waiting to go off.
+         *
+         * @return	<tt>true</tt> if the alarm has not gone off or, for a
+         *		periodic alarm, has not been cancelled.
+         */
+        public boolean isPending() {
+            return slot >= 0;
+        }
+
+        public int compareTo(Handle other) {
+            if (time != other.time)
+                return time < other.time ? -1 : 1;
+            return Long.compare(sequence, other.sequence);
         }
+
+        /** 下一次触发的时间 */
+        private long time;
+        private long period;
+        /** 允许推迟的时钟数 */
+        private long slack;
+        private Runnable handler;
+        /** 所在的槽，未挂在时间轮上时为 -1 */
+        private int slot = -1;
+        private Handle prev, next;
+        /** 时间相同时按加入的顺序 */
+        private final long sequence = sequenceCount++;
     }
+
+    /** 每个槽覆盖的时钟数 */
+    private static final int slotTicks = 64;
+    /** 时间轮的槽数，一圈为 slotTicks * numSlots 个时钟 */
+    private static final int numSlots = 512;
+
+    private Handle[] slots = new Handle[numSlots];
+    /** 上次中断处理到的槽（按绝对编号），下次从这里继续 */
+    private long processedSlot = 0;
+    private int pending = 0;
+
+    private long fired = 0;
+    private long firingInterrupts = 0;
+    private long deferred = 0;
+
+    private static long sequenceCount = 0;
 }
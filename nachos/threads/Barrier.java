@@ -0,0 +1,144 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+
+/**
+ * A <i>barrier</i> holds back a fixed number of threads, its <i>parties</i>,
+ * until all of them have arrived, and then releases them together. It can be
+ * used again once the threads are released, so it suits computations that
+ * run in rounds.
+ *
+ * <p>
+ * The waiting threads are kept in a plain list rather than a
+ * <tt>ThreadQueue</tt>, since they all leave at once, and the last thread to
+ * arrive hands the whole list to the scheduler with
+ * <tt>KThread.readyAll()</tt>.
+ */
+public class Barrier {
+    /**
+     * Allocate a new barrier.
+     *
+     * @param	parties	the number of threads that must arrive before any
+     *			of them is released.
+     */
+    public Barrier(int parties) {
+	this(parties, null);
+    }
+
+    /**
+     * Allocate a new barrier with an action, which is run by the last thread
+     * to arrive before the others are released, for example to set up the
+     * next round.
+     *
+     * @param	parties	the number of threads that must arrive before any
+     *			of them is released.
+     * @param	action	the action to run when all parties have arrived, or
+     *			<tt>null</tt>.
+     */
+    public Barrier(int parties, Runnable action) {
+	Lib.assertTrue(parties > 0);
+
+	this.parties = parties;
+	this.action = action;
+	waiters = new ArrayList<KThread>(parties);
+    }
+
+    /**
+     * Wait until all parties have arrived at this barrier.
+     *
+     * @return	the number of parties still to arrive after the current
+     *		thread: <tt>getParties() - 1</tt> for the first thread and 0
+     *		for the last.
+     */
+    public int await() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int remaining = parties - 1 - waiters.size();
+
+	if (remaining > 0) {
+	    waiters.add(KThread.currentThread());
+	    SyncProfiler.block(this, site);
+	    KThread.sleep();
+	    SyncProfiler.unblock();
+	}
+	else {
+	    // 最后到达的线程先执行动作，再一次性放行所有等待者
+	    if (action != null) {
+		Machine.interrupt().restore(intStatus);
+		action.run();
+		Machine.interrupt().disable();
+	    }
+
+	    KThread.readyAll(waiters);
+	    waiters.clear();
+	    rounds++;
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return remaining;
+    }
+
+    /**
+     * Return the number of threads this barrier waits for.
+     *
+     * @return	the number of parties.
+     */
+    public int getParties() {
+	return parties;
+    }
+
+    /**
+     * Return the number of threads waiting at this barrier.
+     *
+     * @return	the number of waiting threads.
+     */
+    public int getWaiting() {
+	return waiters.size();
+    }
+
+    /**
+     * Return the number of times this barrier has released its parties.
+     *
+     * @return	the number of rounds completed.
+     */
+    public long getRounds() {
+	return rounds;
+    }
+
+    /**
+     * Test that this module and <tt>CountDownLatch</tt> are working.
+     */
+    public static void selfTest() {
+	final int numThreads = 4, numRounds = 3;
+	final int[] arrived = new int[numRounds];
+	final CountDownLatch done = new CountDownLatch(numThreads);
+	final Barrier barrier = new Barrier(numThreads);
+
+	for (int i=0; i<numThreads; i++) {
+	    new KThread(new Runnable() {
+		    public void run() {
+			for (int round=0; round<numRounds; round++) {
+			    arrived[round]++;
+			    barrier.await();
+			    // 放行时本轮所有线程都已到达
+			    Lib.assertTrue(arrived[round] == numThreads);
+			}
+			done.countDown();
+		    }
+		}).setName("barrier" + i).fork();
+	}
+
+	done.await();
+	Lib.assertTrue(done.getCount() == 0);
+	Lib.assertTrue(barrier.getRounds() == numRounds);
+    }
+
+    private int parties;
+    private Runnable action;
+    /** The threads waiting for the current round to complete. */
+    private ArrayList<KThread> waiters;
+    private long rounds = 0;
+    private String site = SyncProfiler.site(this);
+}
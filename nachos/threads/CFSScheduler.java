@@ -0,0 +1,238 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.TreeSet;
+
+/**
+ * A completely fair scheduler, in the style of the Linux CFS.
+ *
+ * <p>
+ * Every thread accumulates <i>virtual runtime</i>: the simulated ticks it has
+ * run, scaled down by a weight that grows with its effective priority. The
+ * waiting thread with the least virtual runtime is always chosen next, so
+ * over time each thread gets processor time in proportion to its weight, and
+ * no thread can be starved. Waiters are kept in a red-black tree ordered by
+ * virtual runtime, so a pick takes O(log n) time.
+ *
+ * <p>
+ * Run time is charged to the running thread, using <tt>Timer.getTime()</tt>,
+ * whenever a queue changes, which includes every context switch. A thread
+ * that has been blocked rejoins a queue no further than
+ * <tt>CFSScheduler.sleeperCredit</tt> ticks (from <tt>nachos.conf</tt>)
+ * behind the thread that ran most recently, so sleeping does not bank an
+ * unbounded claim on the processor.
+ *
+ * <p>
+ * Priorities range from <tt>priorityMinimum</tt> to <tt>priorityMaximum</tt>
+ * as in the priority scheduler, and are donated through locks and joins in
+ * the same way.
+ */
+public class CFSScheduler extends PriorityScheduler {
+    /**
+     * Allocate a new completely fair scheduler.
+     */
+    public CFSScheduler() {
+	sleeperCredit = Config.getInteger("CFSScheduler.sleeperCredit", 1000);
+    }
+
+    /**
+     * Allocate a new fair thread queue.
+     *
+     * @param	transferPriority	<tt>true</tt> if this queue should
+     *					transfer priority from waiting threads
+     *					to the owning thread.
+     * @return	a new fair thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new FairQueue(transferPriority);
+    }
+
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new FairThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * Return the virtual runtime of a thread, in ticks. Must be called with
+     * interrupts disabled.
+     *
+     * @param	thread	the thread to get the virtual runtime of.
+     * @return	the thread's virtual runtime.
+     */
+    public long getVirtualRuntime(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return ((FairThreadState) getThreadState(thread)).vruntime;
+    }
+
+    /**
+     * Charge the time since the last charge to the current thread.
+     */
+    private void charge() {
+	long time = Machine.timer().getTime();
+	long delta = time - lastChargeTime;
+	lastChargeTime = time;
+
+	if (delta == 0)
+	    return;
+
+	FairThreadState state =
+	    (FairThreadState) getThreadState(KThread.currentThread());
+	FairQueue queue = (FairQueue) state.waitingOn;
+
+	// 已经在队列中的线程（刚刚让出处理器）需要重新排序
+	if (queue != null)
+	    queue.waitlist.remove(state);
+
+	state.vruntime += delta * weights[priorityDefault]
+	    / weights[state.getEffectivePriority()];
+
+	if (queue != null)
+	    queue.waitlist.add(state);
+    }
+
+    protected class FairThreadState extends ThreadState {
+	public FairThreadState(KThread thread) {
+	    super(thread);
+	}
+
+	/** 按权重折算后的运行时间 */
+	protected long vruntime = 0;
+	/** 进入等待队列的顺序，用于打破 vruntime 相同的情况 */
+	protected long sequence = 0;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that always returns the waiting thread with the
+     * least virtual runtime.
+     */
+    protected class FairQueue extends PriorityQueue {
+	FairQueue(boolean transferPriority) {
+	    super(transferPriority);
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    charge();
+	    super.waitForAccess(thread);
+	}
+
+	public void waitForAccessAll(Collection<KThread> threads) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    charge();
+	    super.waitForAccessAll(threads);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    charge();
+	    KThread thread = super.nextThread();
+	    if (thread != null) {
+		long vruntime = ((FairThreadState) getThreadState(thread)).vruntime;
+		minVruntime = Math.max(minVruntime, vruntime);
+	    }
+
+	    return thread;
+	}
+
+	protected void add(ThreadState state) {
+	    FairThreadState fairState = (FairThreadState) state;
+
+	    // 睡眠的线程最多只能领先 sleeperCredit
+	    fairState.vruntime = Math.max(fairState.vruntime,
+					  minVruntime - sleeperCredit);
+	    fairState.sequence = sequenceCount++;
+	    waitlist.add(fairState);
+
+	    countPriority(state.getEffectivePriority(), 1);
+	    state.bucket = state.getEffectivePriority();
+	}
+
+	protected void remove(ThreadState state) {
+	    waitlist.remove(state);
+
+	    countPriority(state.bucket, -1);
+	    state.bucket = -1;
+	}
+
+	protected void priorityChanged(ThreadState state, int oldPriority) {
+	    // 权重只影响以后的运行时间，不影响排序
+	    countPriority(oldPriority, -1);
+	    countPriority(state.getEffectivePriority(), 1);
+	    state.bucket = state.getEffectivePriority();
+	}
+
+	protected boolean isEmpty() {
+	    return waitlist.isEmpty();
+	}
+
+	protected int getDonation() {
+	    if (nonEmpty == 0)
+		return priorityMinimum;
+
+	    return 31 - Integer.numberOfLeadingZeros(nonEmpty);
+	}
+
+	protected ThreadState pickNextThread() {
+	    if (waitlist.isEmpty())
+		return null;
+
+	    return waitlist.first();
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    for (FairThreadState state : waitlist) {
+		System.out.println(state.thread + " (vruntime "
+				   + state.vruntime + ")");
+	    }
+	}
+
+	/**
+	 * Keep track of how many waiters have each effective priority, so the
+	 * donated priority can be found without a scan.
+	 */
+	private void countPriority(int priority, int delta) {
+	    priorityCounts[priority] += delta;
+	    if (priorityCounts[priority] == 0)
+		nonEmpty &= ~(1 << priority);
+	    else
+		nonEmpty |= 1 << priority;
+	}
+
+	/** 按 vruntime 排序的等待线程 */
+	private TreeSet<FairThreadState> waitlist =
+	    new TreeSet<>(new Comparator<FairThreadState>() {
+		public int compare(FairThreadState a, FairThreadState b) {
+		    if (a.vruntime != b.vruntime)
+			return a.vruntime < b.vruntime ? -1 : 1;
+		    return Long.compare(a.sequence, b.sequence);
+		}
+	    });
+	/** 最近被选中线程的 vruntime */
+	private long minVruntime = 0;
+	/** 每个有效优先级上的等待线程数 */
+	private int[] priorityCounts = new int[priorityMaximum+1];
+	/** Bit <i>i</i> is set if <tt>priorityCounts[i]</tt> is not zero. */
+	private int nonEmpty = 0;
+    }
+
+    /**
+     * The weight of each priority. Each step up in priority gives a thread
+     * 25% more processor time than the step below.
+     */
+    private static final long[] weights = { 820, 1024, 1280, 1600,
+					    2000, 2500, 3125, 3906 };
+
+    private int sleeperCredit;
+    private long lastChargeTime = 0;
+    private static long sequenceCount = 0;
+}
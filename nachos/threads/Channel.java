@@ -0,0 +1,343 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <i>channel</i> carries 32-bit words from sending threads to receiving
+ * threads through a bounded buffer. A sender waits only while the buffer is
+ * full, and a receiver only while it is empty, so a producer can get ahead of
+ * its consumer by up to <i>capacity</i> words.
+ *
+ * <p>
+ * Words can be sent and received in batches. A batch is copied into or out
+ * of the buffer in as few pieces as the free space allows, and each piece
+ * wakes at most one waiting thread, so a consumer that keeps up with its
+ * producer takes one context switch per batch rather than one per word.
+ *
+ * <p>
+ * A channel with a capacity of 0 is a rendezvous, like a
+ * <tt>Communicator</tt>: <tt>send()</tt> does not return until every word it
+ * sent has been received. While it waits, the sender lends its priority to the
+ * receiver it woke, through <tt>Scheduler.beginTransfer()</tt>.
+ */
+public class Channel {
+    /**
+     * Allocate a new channel.
+     *
+     * @param	capacity	the number of words the channel can hold, or 0
+     *				for a rendezvous.
+     */
+    public Channel(int capacity) {
+	Lib.assertTrue(capacity >= 0);
+
+	this.capacity = capacity;
+	// 容量为 0 时用一个字的缓冲区交接，发送者等到它被取走
+	buffer = new int[Math.max(capacity, 1)];
+
+	lock = new Lock();
+	notEmpty = new Condition2(lock);
+	notFull = new Condition2(lock);
+	delivered = new Condition2(lock);
+    }
+
+    /**
+     * Send one word, waiting while the channel is full.
+     *
+     * @param	word	the word to send.
+     */
+    public void send(int word) {
+	send(new int[] { word }, 0, 1);
+    }
+
+    /**
+     * Send every word in <i>words</i>, in order.
+     *
+     * @param	words	the words to send.
+     */
+    public void send(int[] words) {
+	send(words, 0, words.length);
+    }
+
+    /**
+     * Send <i>length</i> words from <i>words</i>, starting at <i>offset</i>.
+     * Words from one call are never interleaved with words from another
+     * sender, unless the batch is larger than the free space, in which case
+     * it is sent in several pieces.
+     *
+     * @param	words	the array holding the words to send.
+     * @param	offset	the index of the first word to send.
+     * @param	length	the number of words to send.
+     */
+    public void send(int[] words, int offset, int length) {
+	Lib.assertTrue(offset >= 0 && length >= 0
+		       && offset + length <= words.length);
+
+	lock.acquire();
+
+	KThread receiver = null;
+	while (length > 0) {
+	    while (count == buffer.length)
+		notFull.sleep();
+
+	    int amount = Math.min(length, buffer.length - count);
+	    int tail = (head + count) % buffer.length;
+	    int first = Math.min(amount, buffer.length - tail);
+	    System.arraycopy(words, offset, buffer, tail, first);
+	    System.arraycopy(words, offset + first, buffer, 0, amount - first);
+
+	    count += amount;
+	    sent += amount;
+	    offset += amount;
+	    length -= amount;
+
+	    // 每一段只唤醒一个接收者，剩余的数据由它继续唤醒下一个
+	    KThread woken = notEmpty.wakeNext();
+	    if (woken != null)
+		receiver = woken;
+	}
+
+	// 还有空位时让下一个发送者继续
+	if (count < buffer.length)
+	    notFull.wake();
+
+	if (capacity == 0) {
+	    // 等待交接期间，把发送者的优先级（彩票）借给被唤醒的接收者
+	    boolean intStatus = Machine.interrupt().disable();
+	    if (receiver != null)
+		ThreadedKernel.scheduler.beginTransfer(KThread.currentThread(),
+						       receiver);
+	    Machine.interrupt().restore(intStatus);
+
+	    long last = sent;
+	    while (received < last)
+		delivered.sleep();
+
+	    intStatus = Machine.interrupt().disable();
+	    ThreadedKernel.scheduler.endTransfer(KThread.currentThread());
+	    Machine.interrupt().restore(intStatus);
+	}
+
+	lock.release();
+    }
+
+    /**
+     * Receive one word, waiting while the channel is empty.
+     *
+     * @return	the word received.
+     */
+    public int receive() {
+	int[] word = new int[1];
+	receive(word, 0, 1);
+	return word[0];
+    }
+
+    /**
+     * Receive as many words as are available, up to the size of <i>buf</i>,
+     * waiting while the channel is empty.
+     *
+     * @param	buf	the array to fill.
+     * @return	the number of words received, at least 1 unless <i>buf</i>
+     *		is empty.
+     */
+    public int receive(int[] buf) {
+	return receive(buf, 0, buf.length);
+    }
+
+    /**
+     * Receive as many words as are available, up to <i>length</i>, into
+     * <i>buf</i> starting at <i>offset</i>, waiting while the channel is
+     * empty.
+     *
+     * @param	buf	the array to fill.
+     * @param	offset	the index of the first word to fill.
+     * @param	length	the maximum number of words to receive.
+     * @return	the number of words received, at least 1 unless
+     *		<i>length</i> is 0.
+     */
+    public int receive(int[] buf, int offset, int length) {
+	Lib.assertTrue(offset >= 0 && length >= 0
+		       && offset + length <= buf.length);
+
+	if (length == 0)
+	    return 0;
+
+	lock.acquire();
+
+	while (count == 0)
+	    notEmpty.sleep();
+
+	int amount = Math.min(length, count);
+	int first = Math.min(amount, buffer.length - head);
+	System.arraycopy(buffer, head, buf, offset, first);
+	System.arraycopy(buffer, 0, buf, offset + first, amount - first);
+
+	head = (head + amount) % buffer.length;
+	count -= amount;
+	received += amount;
+
+	notFull.wake();
+	if (count > 0)
+	    notEmpty.wake();
+	if (capacity == 0)
+	    delivered.wakeAll();
+
+	lock.release();
+
+	return amount;
+    }
+
+    /**
+     * Return the number of words waiting in the channel.
+     *
+     * @return	the number of words sent but not yet received.
+     */
+    public int available() {
+	return count;
+    }
+
+    /**
+     * Test that batches wrap around the end of the buffer, that a batch
+     * larger than the channel is sent in pieces and arrives in order, and that
+     * a rendezvous sender waits until its words are received.
+     */
+    public static void selfTest() {
+	// 先让 head 前移，下一批数据会绕回缓冲区开头
+	Channel channel = new Channel(4);
+	int[] buf = new int[4];
+	channel.send(new int[] { 0, 1, 2 });
+	Lib.assertTrue(channel.receive(buf) == 3);
+	channel.send(new int[] { 3, 4, 5 });
+	Lib.assertTrue(channel.available() == 3);
+	Lib.assertTrue(channel.receive(buf) == 3);
+	for (int i=0; i<3; i++)
+	    Lib.assertTrue(buf[i] == 3 + i);
+
+	// 比容量大的一批分几段发送，接收顺序不变
+	final Channel small = new Channel(4);
+	KThread producer = new KThread(new Runnable() {
+		public void run() {
+		    int[] words = new int[10];
+		    for (int i=0; i<words.length; i++)
+			words[i] = i;
+		    small.send(words);
+		}
+	    }).setName("channel producer");
+	producer.fork();
+
+	for (int i=0; i<10; ) {
+	    int amount = small.receive(buf);
+	    Lib.assertTrue(amount > 0 && small.available() <= 4);
+	    for (int j=0; j<amount; j++)
+		Lib.assertTrue(buf[j] == i + j);
+	    i += amount;
+	}
+	producer.join();
+
+	// 容量为 0 时，send() 要等所有字都被取走才返回
+	final Channel rendezvous = new Channel(0);
+	final boolean[] done = new boolean[1];
+	KThread sender = new KThread(new Runnable() {
+		public void run() {
+		    rendezvous.send(new int[] { 7, 8 });
+		    done[0] = true;
+		}
+	    }).setName("channel sender");
+	sender.fork();
+
+	// 发送者放入每个字后都要等待，接收者拿到字时它还没有返回
+	for (int i=0; i<2; i++) {
+	    Lib.assertTrue(rendezvous.receive() == 7 + i);
+	    Lib.assertTrue(!done[0]);
+	}
+	sender.join();
+	Lib.assertTrue(done[0]);
+    }
+
+    /**
+     * Measure how long it takes to move <i>numWords</i> words from one thread
+     * to another, first a word at a time through a <tt>Communicator</tt> and
+     * then in batches of <i>batch</i> words through a channel with room for
+     * one batch.
+     *
+     * @param	numWords	the number of words to move.
+     * @param	batch		the number of words in each batch.
+     */
+    public static void benchmark(int numWords, int batch) {
+	final Communicator communicator = new Communicator();
+	long communicatorTicks = runBenchmark(numWords, new Transfer() {
+		public void send(int[] words) {
+		    for (int i=0; i<words.length; i++)
+			communicator.speak(words[i]);
+		}
+		public int receive(int[] buf) {
+		    buf[0] = communicator.listen();
+		    return 1;
+		}
+	    }, 1);
+
+	final Channel channel = new Channel(batch);
+	long channelTicks = runBenchmark(numWords, new Transfer() {
+		public void send(int[] words) {
+		    channel.send(words);
+		}
+		public int receive(int[] buf) {
+		    return channel.receive(buf);
+		}
+	    }, batch);
+
+	System.out.println("Channel: " + numWords + " words, Communicator: "
+			   + communicatorTicks + " ticks, batches of " + batch
+			   + ": " + channelTicks + " ticks");
+    }
+
+    private interface Transfer {
+	void send(int[] words);
+	int receive(int[] buf);
+    }
+
+    private static long runBenchmark(final int numWords,
+				     final Transfer transfer,
+				     final int batch) {
+	long startTime = Machine.timer().getTime();
+
+	KThread producer = new KThread(new Runnable() {
+		public void run() {
+		    int[] words = new int[batch];
+		    for (int i=0; i<numWords; i+=batch) {
+			if (numWords - i < batch)
+			    words = new int[numWords - i];
+			for (int j=0; j<words.length; j++)
+			    words[j] = i + j;
+			transfer.send(words);
+		    }
+		}
+	    }).setName("producer");
+	producer.fork();
+
+	int[] buf = new int[batch];
+	for (int i=0; i<numWords; ) {
+	    int amount = transfer.receive(buf);
+	    for (int j=0; j<amount; j++)
+		Lib.assertTrue(buf[j] == i + j);
+	    i += amount;
+	}
+
+	producer.join();
+
+	return Machine.timer().getTime() - startTime;
+    }
+
+    private int capacity;
+    /** The ring buffer; the waiting words start at <tt>head</tt>. */
+    private int[] buffer;
+    private int head = 0;
+    private int count = 0;
+    /** The total number of words put into and taken out of the buffer. */
+    private long sent = 0, received = 0;
+
+    private Lock lock;
+    private Condition2 notEmpty;
+    private Condition2 notFull;
+    /** Rendezvous senders wait here until their words are received. */
+    private Condition2 delivered;
+}
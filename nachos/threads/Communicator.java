@@ -2,28 +2,23 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.LinkedList;
-import java.util.Queue;
-
 /**
  * A <i>communicator</i> allows threads to synchronously exchange 32-bit
  * messages. Multiple threads can be waiting to <i>speak</i>,
  * and multiple threads can be waiting to <i>listen</i>. But there should never
  * be a time when both a speaker and a listener are waiting, because the two
  * threads can be paired off at this point.
+ *
+ * <p>
+ * A communicator is a <tt>Channel</tt> with a capacity of 0. Threads that
+ * move many words should use a buffered <tt>Channel</tt> and send them in
+ * batches instead.
  */
 public class Communicator {
     /**
      * Allocate a new communicator.
      */
     public Communicator() {
-        lock=new Lock();
-        queue=new LinkedList<Integer>();
-        speaker=new Condition2(lock);
-        listener=new Condition2(lock);
-        word=0;
-        speakerNum=0;
-        listenerNum=0;
     }
 
     /**
@@ -37,26 +32,7 @@ public class Communicator {
      * @param	word	the integer to transfer.
      */
     public void speak(int word) {
-        lock.acquire();
-        if(listenerNum==0){
-            //如果听者为0,需要将speaker加入队列
-            speakerNum++;
-            //将要传输的int放入尾部
-            queue.offer(word);
-            speaker.sleep();
-
-            //
-            listener.wake();
-            speakerNum--;
-        }
-        else{
-            //如果听者不为0,直接唤醒听者
-            queue.offer(word);
-            listener.wake();
-        }
-        //释放锁
-        lock.release();
-
+	channel.send(word);
     }
 
     /**
@@ -66,29 +42,9 @@ public class Communicator {
      * @return	the integer transferred.
      */    
     public int listen() {
-        lock.acquire();
-        if(speakerNum!=0){
-            //如果说话者为0，则wake一个speaker说话
-            speaker.wake();
-            //将此听者sleep
-            listener.sleep();
-        }
-        else{
-            //如果有speaker,则将lister++
-            listenerNum++;
-            listener.sleep();
-            //被唤醒后 将听者减1
-            listenerNum--;
-        }
-        lock.release();
-//    	Machine.interrupt().restore(status);
-        return queue.poll();
+	return channel.receive();
     }
-    private Lock lock=null;//互斥锁
-    private int speakerNum;
-    private int listenerNum;
-    private int word;
-    private Condition2 speaker;
-    private Condition2 listener;
-    private Queue<Integer> queue;
+
+    //容量为 0：说话者等到听者取走这个字才返回
+    private Channel channel = new Channel(0);
 }
@@ -36,17 +36,54 @@ public class Condition2 {
 	conditionLock.release();//释放锁
 	if(KThread.currentThread()!=null)
     waitqueue.waitForAccess(KThread.currentThread());//放入等待队列
+        SyncProfiler.block(this, site);
         KThread.currentThread().sleep();//将当前线程睡眠
+        SyncProfiler.unblock();
 
 	conditionLock.acquire();//获得锁
     Machine.interrupt().restore(status);//开中断
     }
 
+    /**
+     * Like <tt>sleep()</tt>, but return after at most <i>ticks</i> clock ticks
+     * even if no thread wakes this one. The thread reacquires the lock before
+     * returning either way.
+     *
+     * @param	ticks	the maximum number of clock ticks to sleep.
+     * @return	<tt>true</tt> if the thread was woken by <tt>wake()</tt> or
+     *		<tt>wakeAll()</tt>, or <tt>false</tt> if it timed out.
+     */
+    public boolean sleepFor(long ticks) {
+	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+	boolean status = Machine.interrupt().disable();
+	conditionLock.release();
+	waitqueue.waitForAccess(KThread.currentThread());
+	// 定时器到期时从等待队列中移出，先被唤醒则取消定时
+	SyncProfiler.block(this, site);
+	boolean timedOut = ThreadedKernel.alarm.sleepOn(waitqueue, ticks);
+	SyncProfiler.unblock();
+
+	conditionLock.acquire();
+	Machine.interrupt().restore(status);
+	return !timedOut;
+    }
+
     /**
      * Wake up at most one thread sleeping on this condition variable. The
      * current thread must hold the associated lock.
      */
     public void wake() {
+        wakeNext();
+    }
+
+    /**
+     * Like <tt>wake()</tt>, but return the thread that was woken, so that
+     * the caller can lend it its priority while waiting for it.
+     *
+     * @return	the thread that was woken, or <tt>null</tt> if no thread was
+     *		sleeping.
+     */
+    KThread wakeNext() {
 	    Lib.assertTrue(conditionLock.isHeldByCurrentThread());
         //start
         boolean status = Machine.interrupt().disable();
@@ -57,6 +94,7 @@ public class Condition2 {
 //		System.out.println("111.txt");
         Machine.interrupt().restore(status);
         //end
+        return thread;
     }
 
     /**
@@ -77,6 +115,8 @@ public class Condition2 {
     }
 
     private Lock conditionLock;
+    private String site = SyncProfiler.site(this);
 
-    private ThreadQueue waitqueue=ThreadedKernel.scheduler.newThreadQueue(true);;
+    // 条件变量不是被某个线程持有的资源，等待者不传递优先级
+    private ThreadQueue waitqueue=ThreadedKernel.scheduler.newThreadQueue(false);
 }
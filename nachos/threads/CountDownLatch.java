@@ -0,0 +1,73 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+
+/**
+ * A <i>countdown latch</i> holds back threads until a count, set when the
+ * latch is created, has been counted down to zero, and then releases all of
+ * them together. Once open, the latch stays open. It suits waiting for a set
+ * of tasks to finish, without joining each of them.
+ *
+ * <p>
+ * As with a <tt>Barrier</tt>, the waiting threads are kept in a plain list
+ * and released with one call to <tt>KThread.readyAll()</tt>.
+ */
+public class CountDownLatch {
+    /**
+     * Allocate a new countdown latch.
+     *
+     * @param	count	the number of <tt>countDown()</tt> calls needed to
+     *			open the latch.
+     */
+    public CountDownLatch(int count) {
+	Lib.assertTrue(count >= 0);
+
+	this.count = count;
+    }
+
+    /**
+     * Wait until the count reaches zero. Returns at once if it already has.
+     */
+    public void await() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (count > 0) {
+	    waiters.add(KThread.currentThread());
+	    SyncProfiler.block(this, site);
+	    KThread.sleep();
+	    SyncProfiler.unblock();
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Decrement the count, and release every waiting thread if it reaches
+     * zero. Does nothing if the count is already zero.
+     */
+    public void countDown() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (count > 0 && --count == 0) {
+	    KThread.readyAll(waiters);
+	    waiters.clear();
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Return the current count.
+     *
+     * @return	the number of <tt>countDown()</tt> calls still needed.
+     */
+    public int getCount() {
+	return count;
+    }
+
+    private int count;
+    private ArrayList<KThread> waiters = new ArrayList<KThread>();
+    private String site = SyncProfiler.site(this);
+}
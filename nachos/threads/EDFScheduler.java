@@ -0,0 +1,460 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.TreeSet;
+
+/**
+ * A scheduler with an earliest-deadline-first real-time class on top of
+ * priority scheduling.
+ *
+ * <p>
+ * A thread joins the real-time class with <tt>setRealTime()</tt>, declaring a
+ * period and a budget, both in ticks. At the start of every period the thread
+ * may run for up to its budget, and that job is due by the end of the period.
+ * Real-time threads that still have budget always run ahead of best-effort
+ * threads, earliest deadline first. Best-effort threads, and real-time
+ * threads whose budget for the current period is used up, are scheduled by
+ * priority exactly as in <tt>PriorityScheduler</tt>.
+ *
+ * <p>
+ * Processor time is charged to the running thread whenever a queue changes,
+ * so a budget is enforced at the latest at the next timer interrupt, when
+ * <tt>Alarm.timerInterrupt()</tt> makes the thread yield.
+ *
+ * <p>
+ * A thread is only admitted if the total utilization (budget over period) of
+ * all real-time threads stays within <tt>EDFScheduler.utilization</tt> from
+ * <tt>nachos.conf</tt>. A deadline is counted as missed if the thread is still
+ * runnable, or blocked on a lock, when its period ends.
+ */
+public class EDFScheduler extends PriorityScheduler {
+    /**
+     * Allocate a new EDF scheduler.
+     */
+    public EDFScheduler() {
+	maxUtilization = Config.getDouble("EDFScheduler.utilization", 0.9);
+    }
+
+    /**
+     * Allocate a new EDF thread queue.
+     *
+     * @param	transferPriority	<tt>true</tt> if this queue should
+     *					transfer priority from waiting threads
+     *					to the owning thread.
+     * @return	a new EDF thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new EDFQueue(transferPriority, false);
+    }
+
+    /**
+     * Allocate the ready queue, which records the thread it dispatches so
+     * that its processor time can be charged to it.
+     *
+     * @return	a new EDF ready queue.
+     */
+    public ThreadQueue newReadyQueue() {
+	return new EDFQueue(false, true);
+    }
+
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new EDFThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    public boolean setRealTime(KThread thread, long period, long budget) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	// 有预算却没有周期的请求无效，不能当作恢复为普通线程
+	if (budget < 0 || (period <= 0 && budget > 0))
+	    return false;
+
+	EDFThreadState state = (EDFThreadState) getThreadState(thread);
+
+	double oldUtilization = state.getUtilization();
+	double newUtilization = 0;
+	if (period > 0 && budget > 0) {
+	    if (budget > period)
+		return false;
+	    newUtilization = (double) budget / period;
+	}
+
+	// 准入控制：实时线程的总利用率不能超过上限
+	if (utilization - oldUtilization + newUtilization > maxUtilization
+	    && newUtilization > 0)
+	    return false;
+
+	utilization += newUtilization - oldUtilization;
+
+	// 正在排队的线程先出队，修改后按新的类别重新入队
+	PriorityQueue queue = state.waitingOn;
+	if (queue != null)
+	    queue.remove(state);
+
+	if (newUtilization > 0) {
+	    state.period = period;
+	    state.budget = budget;
+	    state.deadline = Machine.timer().getTime() + period;
+	    state.remaining = budget;
+	}
+	else {
+	    state.period = 0;
+	    state.budget = 0;
+	}
+
+	if (queue != null) {
+	    queue.add(state);
+	    if (queue.holder != null)
+		queue.holder.updateEffectivePriority();
+	}
+
+	return true;
+    }
+
+    /**
+     * Release the utilization reserved by a finishing real-time thread, so
+     * that it no longer counts against admission control.
+     *
+     * @param	thread	the finishing thread.
+     */
+    public void threadFinished(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	setRealTime(thread, 0, 0);
+    }
+
+    /**
+     * Return the number of deadlines the specified thread has missed. Must
+     * be called with interrupts disabled.
+     *
+     * @param	thread	the thread.
+     * @return	the number of missed deadlines.
+     */
+    public int getDeadlineMisses(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return ((EDFThreadState) getThreadState(thread)).misses;
+    }
+
+    /**
+     * Return the number of deadlines missed by all real-time threads.
+     *
+     * @return	the total number of missed deadlines.
+     */
+    public int getDeadlineMisses() {
+	return totalMisses;
+    }
+
+    /**
+     * Charge the time since the last charge to the budget of the thread the
+     * ready queue last dispatched.
+     */
+    private void charge() {
+	charge(Machine.timer().getTime());
+    }
+
+    private void charge(long time) {
+	long delta = time - lastChargeTime;
+	lastChargeTime = time;
+
+	if (running == null)
+	    return;
+
+	EDFThreadState state = (EDFThreadState) getThreadState(running);
+	if (!state.isRealTime())
+	    return;
+
+	// 正在运行的线程到了截止时间，本周期的任务没有完成
+	PriorityQueue queue = state.waitingOn;
+	if (queue != null)
+	    queue.remove(state);
+
+	state.remaining -= delta;
+	state.releaseDue(time, true);
+
+	// 可能在实时和受限两类之间移动，持有者的捐赠随之改变
+	if (queue != null) {
+	    queue.add(state);
+	    if (queue.holder != null)
+		queue.holder.updateEffectivePriority();
+	}
+    }
+
+    protected class EDFThreadState extends ThreadState {
+	public EDFThreadState(KThread thread) {
+	    super(thread);
+	}
+
+	boolean isRealTime() {
+	    return budget > 0;
+	}
+
+	double getUtilization() {
+	    return isRealTime() ? (double) budget / period : 0;
+	}
+
+	/**
+	 * If the current period has ended, start the next job with a full
+	 * budget, counting a miss if the previous job was still running.
+	 */
+	void releaseDue(long time, boolean stillRunning) {
+	    if (!isRealTime() || time < deadline)
+		return;
+
+	    if (stillRunning) {
+		misses++;
+		totalMisses++;
+		Lib.debug(dbgEDF, "Deadline missed: " + thread);
+	    }
+
+	    long periods = (time - deadline) / period + 1;
+	    deadline += periods * period;
+	    remaining = budget;
+	}
+
+	/** 周期和每个周期的预算，预算为 0 表示普通线程 */
+	long period = 0, budget = 0;
+	/** 当前任务的截止时间 */
+	long deadline = 0;
+	/** 当前周期剩余的预算 */
+	long remaining = 0;
+	/** 错过截止时间的次数 */
+	int misses = 0;
+	/** 在实时队列中排队 */
+	boolean realTimeQueued = false;
+	/** 进入等待队列的顺序，用于打破截止时间相同的情况 */
+	long sequence = 0;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that returns the real-time thread with the
+     * earliest deadline, or if there is none, the best-effort thread with
+     * the highest priority.
+     */
+    protected class EDFQueue extends PriorityQueue {
+	EDFQueue(boolean transferPriority, boolean readyQueue) {
+	    super(transferPriority);
+	    this.readyQueue = readyQueue;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    charge();
+	    super.waitForAccess(thread);
+	}
+
+	public void waitForAccessAll(Collection<KThread> threads) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    charge();
+	    super.waitForAccessAll(threads);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    charge();
+	    KThread thread = super.nextThread();
+
+	    // 就绪队列取出的线程（为空时是空闲线程）接着运行
+	    if (readyQueue)
+		running = thread;
+	    return thread;
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    super.acquire(thread);
+	    if (readyQueue)
+		running = thread;
+	}
+
+	protected void add(ThreadState state) {
+	    EDFThreadState edfState = (EDFThreadState) state;
+	    edfState.sequence = sequenceCount++;
+
+	    // 被其他线程唤醒说明上一个任务已经完成
+	    edfState.releaseDue(Machine.timer().getTime(),
+				state.thread == KThread.currentThread());
+
+	    if (edfState.isRealTime() && edfState.remaining > 0) {
+		realTime.add(edfState);
+		edfState.realTimeQueued = true;
+	    }
+	    else {
+		// 预算用完的实时线程按普通线程调度，直到下一个周期
+		super.add(state);
+		if (edfState.isRealTime())
+		    throttled.add(edfState);
+		edfState.realTimeQueued = false;
+	    }
+	}
+
+	protected void remove(ThreadState state) {
+	    EDFThreadState edfState = (EDFThreadState) state;
+
+	    if (edfState.realTimeQueued) {
+		realTime.remove(edfState);
+		edfState.realTimeQueued = false;
+	    }
+	    else {
+		throttled.remove(edfState);
+		super.remove(state);
+	    }
+	}
+
+	protected void priorityChanged(ThreadState state, int oldPriority) {
+	    // 实时线程按截止时间排序，与优先级无关
+	    if (!((EDFThreadState) state).realTimeQueued)
+		super.priorityChanged(state, oldPriority);
+	}
+
+	protected boolean isEmpty() {
+	    return realTime.isEmpty() && super.isEmpty();
+	}
+
+	protected int getDonation() {
+	    // 实时线程等待时，持有者以最高优先级运行
+	    if (!realTime.isEmpty())
+		return priorityMaximum;
+
+	    return super.getDonation();
+	}
+
+	protected ThreadState pickNextThread() {
+	    long time = Machine.timer().getTime();
+
+	    // 新周期开始的线程回到实时队列
+	    while (!throttled.isEmpty() && throttled.first().deadline <= time) {
+		EDFThreadState state = throttled.first();
+		remove(state);
+		// 预算用完后仍在排队，本周期的任务没有完成
+		state.releaseDue(time, true);
+		add(state);
+	    }
+
+	    // 排队时错过截止时间的线程
+	    while (!realTime.isEmpty() && realTime.first().deadline <= time) {
+		EDFThreadState state = realTime.first();
+		remove(state);
+		state.releaseDue(time, true);
+		add(state);
+	    }
+
+	    if (!realTime.isEmpty())
+		return realTime.first();
+
+	    return super.pickNextThread();
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    for (EDFThreadState state : realTime) {
+		System.out.println(state.thread + " (deadline "
+				   + state.deadline + ")");
+	    }
+	    super.print();
+	}
+
+	/** 是否为就绪队列 */
+	private boolean readyQueue;
+	/** 有预算的实时线程，按截止时间排序 */
+	private TreeSet<EDFThreadState> realTime = new TreeSet<>(byDeadline);
+	/** 预算用完的实时线程，按下一个周期的开始时间排序 */
+	private TreeSet<EDFThreadState> throttled = new TreeSet<>(byDeadline);
+    }
+
+    /**
+     * Test admission control, that real-time threads are dequeued earliest
+     * deadline first ahead of best-effort threads of any priority, and that a
+     * thread that overruns its budget waits behind best-effort threads until
+     * its next period. The test uses its own scheduler and threads that never
+     * run, and charges processor time to them explicitly.
+     */
+    public static void selfTest() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	EDFScheduler scheduler = new EDFScheduler();
+	scheduler.maxUtilization = 0.9;
+
+	// 准入控制：总利用率不能超过上限，结束的线程归还利用率
+	KThread first = new KThread().setName("edf first");
+	KThread second = new KThread().setName("edf second");
+	Lib.assertTrue(scheduler.setRealTime(first, 100, 50));
+	Lib.assertTrue(!scheduler.setRealTime(second, 100, 50));
+	Lib.assertTrue(scheduler.setRealTime(second, 100, 40));
+	scheduler.threadFinished(first);
+	Lib.assertTrue(scheduler.setRealTime(first, 100, 50));
+	scheduler.threadFinished(first);
+	scheduler.threadFinished(second);
+	Lib.assertTrue(scheduler.utilization < 1e-9);
+
+	// 截止时间早的实时线程先出队，都排在最高优先级的普通线程前面
+	ThreadQueue queue = scheduler.newThreadQueue(false);
+	KThread busy = new KThread().setName("edf best-effort");
+	scheduler.setPriority(busy, priorityMaximum);
+	Lib.assertTrue(scheduler.setRealTime(first, 200, 20));
+	Lib.assertTrue(scheduler.setRealTime(second, 100, 10));
+	queue.waitForAccess(busy);
+	queue.waitForAccess(first);
+	queue.waitForAccess(second);
+	Lib.assertTrue(queue.nextThread() == second);
+	Lib.assertTrue(queue.nextThread() == first);
+	Lib.assertTrue(queue.nextThread() == busy);
+
+	// 工作线程被调度后运行了 20 个时钟，超过 10 个时钟的预算
+	ThreadQueue readyQueue = scheduler.newReadyQueue();
+	KThread worker = new KThread().setName("edf worker");
+	Lib.assertTrue(scheduler.setRealTime(worker, 100, 10));
+	EDFThreadState state = (EDFThreadState) scheduler.getThreadState(worker);
+	readyQueue.acquire(worker);
+	long time = Machine.timer().getTime();
+	scheduler.lastChargeTime = time - 20;
+
+	// 让出后排在普通线程后面，直到下一个周期
+	readyQueue.waitForAccess(worker);
+	readyQueue.waitForAccess(busy);
+	Lib.assertTrue(state.remaining <= 0);
+	Lib.assertTrue(readyQueue.nextThread() == busy);
+	Lib.assertTrue(readyQueue.nextThread() == worker);
+
+	// 运行到截止时间之后记一次错过，下一个周期预算恢复
+	scheduler.charge(state.deadline);
+	Lib.assertTrue(scheduler.getDeadlineMisses(worker) == 1);
+	Lib.assertTrue(state.remaining == 10);
+	scheduler.lastChargeTime = time;
+
+	readyQueue.waitForAccess(busy);
+	readyQueue.waitForAccess(worker);
+	Lib.assertTrue(readyQueue.nextThread() == worker);
+	Lib.assertTrue(readyQueue.nextThread() == busy);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    private static final Comparator<EDFThreadState> byDeadline =
+	new Comparator<EDFThreadState>() {
+	    public int compare(EDFThreadState a, EDFThreadState b) {
+		if (a.deadline != b.deadline)
+		    return a.deadline < b.deadline ? -1 : 1;
+		return Long.compare(a.sequence, b.sequence);
+	    }
+	};
+
+    private double maxUtilization;
+    private double utilization = 0;
+    private int totalMisses = 0;
+    private long lastChargeTime = 0;
+    /** 就绪队列最后调度的线程，处理器时间记在它的预算上 */
+    private KThread running = null;
+    private static long sequenceCount = 0;
+
+    private static final char dbgEDF = 'e';
+}
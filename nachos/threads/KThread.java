@@ -2,7 +2,7 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.LinkedList;
+import java.util.Collection;
 
 /**
  * A KThread is a thread that can be used to execute Nachos kernel code. Nachos
@@ -45,13 +45,11 @@ public class KThread {
      * create an idle thread as well.
      */
     public KThread() {
-		// 初始化等待线程列表
-		waitThreadList = new LinkedList<>();
 	if (currentThread != null) {
 	    tcb = new TCB();
 	}	    
-	else {//是否允许优先级传递
-	    readyQueue = ThreadedKernel.scheduler.newThreadQueue(true);
+	else {//就绪队列按有效优先级排序，但不把优先级传递给正在运行的线程
+	    readyQueue = ThreadedKernel.scheduler.newReadyQueue();
 	    readyQueue.acquire(this);	    
 
 	    currentThread = this;
@@ -108,6 +106,30 @@ public class KThread {
 	return name;
     }
 
+    /**
+     * Set the processor this thread should preferably run on. Schedulers
+     * with one run queue per processor keep the thread on that processor's
+     * queue; other schedulers ignore the hint.
+     *
+     * @param	affinity	the processor number, or -1 for no preference.
+     * @return	this thread.
+     */
+    public KThread setAffinity(int affinity) {
+	Lib.assertTrue(affinity >= -1);
+
+	this.affinity = affinity;
+	return this;
+    }
+
+    /**
+     * Get the processor this thread should preferably run on.
+     *
+     * @return	the processor number, or -1 if there is no preference.
+     */
+    public int getAffinity() {
+	return affinity;
+    }
+
     /**
      * Get the full name of this thread. This includes its name along with its
      * numerical ID. This name is used for debugging purposes only.
@@ -191,15 +213,17 @@ public class KThread {
 	Machine.interrupt().disable();
 
 	Machine.autoGrader().finishingCurrentThread();
+	ThreadedKernel.scheduler.threadFinished(currentThread);
 
 	Lib.assertTrue(toBeDestroyed == null);
 	toBeDestroyed = currentThread;
 
 
 	currentThread.status = statusFinished;
-		// 遍历当前线程的等待线程列表
-		for (KThread waitThread : currentThread().waitThreadList) {
-			// 让等待线程进入就绪装填
+		// 依次取出所有 join 到当前线程的等待线程
+		KThread waitThread;
+		while ((waitThread = currentThread.waitQueue.nextThread()) != null) {
+			// 让等待线程进入就绪状态
 			waitThread.ready();
 		}
 
@@ -258,6 +282,16 @@ public class KThread {
 	runNextThread();
     }
 
+    /**
+     * Test if this thread is running or ready to run, as opposed to new,
+     * blocked or finished.
+     *
+     * @return	<tt>true</tt> if this thread is running or ready.
+     */
+    boolean isRunnable() {
+	return status == statusRunning || status == statusReady;
+    }
+
     /**
      * Moves this thread to the ready state and adds this to the scheduler's
      * ready queue.
@@ -275,6 +309,33 @@ public class KThread {
 	Machine.autoGrader().readyThread(this);
     }
 
+    /**
+     * Move every thread in <i>threads</i> to the ready state, in order. This
+     * lets a primitive that releases many threads at once, such as a
+     * <tt>Barrier</tt>, keep them in a plain list rather than a
+     * <tt>ThreadQueue</tt>, and hand them all to the ready queue with a
+     * single <tt>waitForAccessAll()</tt>. Must be called with interrupts
+     * disabled.
+     *
+     * @param	threads	the threads to make ready.
+     */
+    public static void readyAll(Collection<KThread> threads) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	for (KThread thread : threads) {
+	    Lib.debug(dbgThread, "Ready thread: " + thread.toString());
+	    Lib.assertTrue(thread.status != statusReady);
+	    Lib.assertTrue(thread != idleThread);
+
+	    thread.status = statusReady;
+	}
+
+	readyQueue.waitForAccessAll(threads);
+
+	for (KThread thread : threads)
+	    Machine.autoGrader().readyThread(thread);
+    }
+
     /**
      * Waits for this thread to finish. If this thread is already finished,
      * return immediately. This method must only be called once; the second
@@ -319,14 +380,18 @@ public class KThread {
 		Lib.assertTrue(this != currentThread);//调用该方法的进程与正在运行的进程不一致
 
 		boolean status = Machine.interrupt().disable();//关中断
-		waitQueue.acquire(this);
-		// 使之前的优先级顺序失效
-		setPriorityStatus(false);
+		// 被 join 的线程持有自己的 waitQueue，等待者通过它捐赠优先级
+		if (!hasAcquired) {
+			waitQueue.acquire(this);
+			hasAcquired = true;
+		}
 		if (this.status != statusFinished) {
 			//将KThread下的current对象放入waitQueue
-			waitThreadList.add(KThread.currentThread());
+			waitQueue.waitForAccess(KThread.currentThread());
+			SyncProfiler.block(this, site);
 			//将当前线程睡眠
 			sleep();
+			SyncProfiler.unblock();
 		}
 		Machine.interrupt().restore(status);//开中断
 	}
@@ -611,8 +676,8 @@ public class KThread {
 			}
 		}).setName("threadA");//创建线程A
 		//线程B
-		new PriorityScheduler().setPriority(kThreadA,2);//将线程A的优先级设为2
-		System.out.println("threadA的优先级为："+new PriorityScheduler().getThreadState(kThreadA).priority);//输出A的优先级
+		ThreadedKernel.scheduler.setPriority(kThreadA,2);//将线程A的优先级设为2
+		System.out.println("threadA的优先级为："+ThreadedKernel.scheduler.getPriority(kThreadA));//输出A的优先级
 		KThread kThreadB=new KThread(new Runnable() {
 			@Override
 			public void run() {
@@ -623,8 +688,8 @@ public class KThread {
 				System.out.println("B线程结束运行");
 			}
 		}).setName("threadB");//创建线程B
-		new PriorityScheduler().setPriority(kThreadB,4);//将线程B的优先级设为4
-		System.out.println("threadB的优先级为："+new PriorityScheduler().getThreadState(kThreadB).priority);//输出B的优先级
+		ThreadedKernel.scheduler.setPriority(kThreadB,4);//将线程B的优先级设为4
+		System.out.println("threadB的优先级为："+ThreadedKernel.scheduler.getPriority(kThreadB));//输出B的优先级
 		//线程C
 		KThread kThreadC=new KThread(new Runnable() {
 			@Override
@@ -641,8 +706,8 @@ public class KThread {
 				System.out.println("\n<--- 题目 5 结束测试 --->\n");
 			}
 		}).setName("threadC");//创建线程C
-		new PriorityScheduler().setPriority(kThreadC,6);//将线程C的优先级设为6
-		System.out.println("threadC的优先级为："+new PriorityScheduler().getThreadState(kThreadC).priority);//输出C的优先级
+		ThreadedKernel.scheduler.setPriority(kThreadC,6);//将线程C的优先级设为6
+		System.out.println("threadC的优先级为："+ThreadedKernel.scheduler.getPriority(kThreadC));//输出C的优先级
 
 		kThreadA.fork();//run
 		kThreadB.fork();
@@ -738,6 +803,9 @@ public class KThread {
      */
     private int status = statusNew;
     private String name = "(unnamed thread)";
+    private int affinity = -1;
+    /** Where this thread was created, for <tt>SyncProfiler</tt>. */
+    private String site = SyncProfiler.site(this);
     private Runnable target;
     private TCB tcb;
 
@@ -756,22 +824,5 @@ public class KThread {
     private static KThread currentThread = null;
     private static KThread toBeDestroyed = null;
     private static KThread idleThread = null;
-	private LinkedList<KThread> waitThreadList = null;
-	// 获取等待线程列表
-	public LinkedList<KThread> getWaitThreadList() {
-		return waitThreadList;
-	}
-	// 优先级状态：之前的优先级顺序是否有效，true 表示有效
-	private static boolean priorityStatus = false;
-
-	// 获取优先级状态
-	public static boolean getPriorityStatus() {
-		return priorityStatus;
-	}
-
-	// 改变优先级状态
-	public static void setPriorityStatus(boolean status) {
-		priorityStatus = status;
-	}
 
 }
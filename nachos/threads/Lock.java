@@ -18,12 +18,38 @@ import nachos.machine.*;
  * Also, only the thread that acquired a lock may release it. As with
  * semaphores, the API does not allow you to read the lock state (because the
  * value could change immediately after you read it).
+ *
+ * <p>
+ * A lock can be <i>adaptive</i>: a thread that finds it busy while the holder
+ * is still runnable first yields the processor a bounded number of times,
+ * giving the holder the chance to finish a short critical section, and only
+ * blocks if the lock is still busy. If the holder is itself blocked, waiting
+ * cannot help, so the thread blocks at once. The number of yields is given to
+ * the constructor, or read from <tt>Lock.spinYields</tt> in
+ * <tt>nachos.conf</tt>; the default of 0 always blocks.
+ *
+ * <p>
+ * Every lock counts its acquires, how many of them found the lock busy, and
+ * the total ticks threads spent waiting for it.
  */
 public class Lock {
     /**
      * Allocate a new lock. The lock will initially be <i>free</i>.
      */
     public Lock() {
+	this(Config.getInteger("Lock.spinYields", 0));
+    }
+
+    /**
+     * Allocate a new adaptive lock. The lock will initially be <i>free</i>.
+     *
+     * @param	spinYields	the number of times a thread yields while
+     *				the holder is runnable before blocking.
+     */
+    public Lock(int spinYields) {
+	Lib.assertTrue(spinYields >= 0);
+
+	this.spinYields = spinYields;
     }
 
     /**
@@ -36,9 +62,31 @@ public class Lock {
 	boolean intStatus = Machine.interrupt().disable();
 	KThread thread = KThread.currentThread();
 
+	acquires++;
+
 	if (lockHolder != null) {
-	    waitQueue.waitForAccess(thread);
-	    KThread.sleep();
+	    long startTime = Machine.timer().getTime();
+	    contendedAcquires++;
+
+	    // 持有者还能运行时先让出处理器几次，临界区短的话不必睡眠
+	    for (int i=0; i<spinYields && lockHolder != null
+		     && lockHolder.isRunnable(); i++) {
+		KThread.yield();
+	    }
+
+	    if (lockHolder == null) {
+		waitQueue.acquire(thread);
+		lockHolder = thread;
+		spinAcquires++;
+	    }
+	    else {
+		waitQueue.waitForAccess(thread);
+		SyncProfiler.block(this, site);
+		KThread.sleep();
+		SyncProfiler.unblock();
+	    }
+
+	    waitTime += Machine.timer().getTime() - startTime;
 	}
 	else {
 	    waitQueue.acquire(thread);
@@ -73,7 +121,60 @@ public class Lock {
 	return (lockHolder == KThread.currentThread());
     }
 
+    /**
+     * Return the thread holding this lock.
+     *
+     * @return	the holder, or <tt>null</tt> if the lock is free.
+     */
+    KThread getHolder() {
+	return lockHolder;
+    }
+
+    /**
+     * Return the number of times this lock has been acquired.
+     *
+     * @return	the number of acquires.
+     */
+    public long getAcquires() {
+	return acquires;
+    }
+
+    /**
+     * Return the number of acquires that found this lock busy.
+     *
+     * @return	the number of contended acquires.
+     */
+    public long getContendedAcquires() {
+	return contendedAcquires;
+    }
+
+    /**
+     * Return the number of contended acquires that got this lock while
+     * yielding, without blocking.
+     *
+     * @return	the number of acquires that did not block.
+     */
+    public long getSpinAcquires() {
+	return spinAcquires;
+    }
+
+    /**
+     * Return the total ticks threads have spent waiting for this lock.
+     *
+     * @return	the total wait time.
+     */
+    public long getWaitTime() {
+	return waitTime;
+    }
+
+    private int spinYields;
+    private long acquires = 0;
+    private long contendedAcquires = 0;
+    private long spinAcquires = 0;
+    private long waitTime = 0;
+
     private KThread lockHolder = null;
+    private String site = SyncProfiler.site(this);
     private ThreadQueue waitQueue =
 	ThreadedKernel.scheduler.newThreadQueue(true);
 }
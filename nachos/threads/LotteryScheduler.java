@@ -2,9 +2,11 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
 
 /**
  * A scheduler that chooses threads using a lottery.
@@ -25,6 +27,13 @@ import java.util.Iterator;
  * particular, tickets must be transferred through locks, and through joins.
  * Unlike a priority scheduler, these tickets add (as opposed to just taking
  * the maximum).
+ *
+ * <p>
+ * Threads can be grouped into currencies (see <tt>newCurrency()</tt>), so that
+ * each group gets a guaranteed share of the processor however many threads
+ * and tickets it has. The tickets a currency issues to its members are
+ * bounded by its issue limit, and the funding of all currencies together by
+ * <tt>LotteryScheduler.fundingLimit</tt> in <tt>nachos.conf</tt>.
  */
 public class LotteryScheduler extends PriorityScheduler {
     /**
@@ -44,73 +53,611 @@ public class LotteryScheduler extends PriorityScheduler {
     public ThreadQueue newThreadQueue(boolean transferPriority) {
         return new LotteryQueue(transferPriority);
     }
+    /**
+     * Create a new currency, funded with the specified number of base
+     * tickets. Must be called with interrupts disabled.
+     *
+     * @param	name		the name of the currency, for debugging.
+     * @param	funding		the base tickets backing the currency.
+     * @param	issueLimit	the most tickets the members of the currency
+     *				may hold in total.
+     * @return	the new currency, or <tt>null</tt> if the funding would
+     *		exceed <tt>LotteryScheduler.fundingLimit</tt>.
+     */
+    public Currency newCurrency(String name, int funding, int issueLimit) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+        Lib.assertTrue(funding >= 0 && issueLimit >= 0);
+
+        if (totalFunding + funding > fundingLimit)
+            return null;
+
+        totalFunding += funding;
+        return new Currency(name, funding, issueLimit);
+    }
+
+    /**
+     * Move a thread into the specified currency, or back to the base currency
+     * if <i>currency</i> is <tt>null</tt>. Must be called with interrupts
+     * disabled.
+     *
+     * @param	thread		the thread.
+     * @param	currency	the thread's new currency, or <tt>null</tt>.
+     * @return	<tt>false</tt> if the thread's tickets would exceed the issue
+     *		limit of the currency.
+     */
+    public boolean setCurrency(KThread thread, Currency currency) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        LotteryThreadState state = (LotteryThreadState) getThreadState(thread);
+        if (state.currency == currency)
+            return true;
+
+        if (currency != null
+            && currency.issued + state.getPriority() > currency.issueLimit)
+            return false;
+
+        // 正在排队的线程先出队，换到新货币后重新入队
+        PriorityQueue queue = state.waitingOn;
+        if (queue != null)
+            queue.remove(state);
+
+        if (state.currency != null)
+            state.currency.issued -= state.getPriority();
+        state.currency = currency;
+        if (currency != null)
+            currency.issued += state.getPriority();
+
+        if (queue != null) {
+            queue.add(state);
+            if (queue.holder != null)
+                queue.holder.updateEffectivePriority();
+        }
+
+        return true;
+    }
+
+    /**
+     * Return the tickets of a finishing thread to its currency, so that they
+     * no longer count against the issue limit.
+     *
+     * @param	thread	the finishing thread.
+     */
+    public void threadFinished(KThread thread) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        setCurrency(thread, null);
+    }
+
+    /**
+     * Return the currency of a thread. Must be called with interrupts
+     * disabled.
+     *
+     * @param	thread	the thread.
+     * @return	the thread's currency, or <tt>null</tt> for the base currency.
+     */
+    public Currency getCurrency(KThread thread) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        return ((LotteryThreadState) getThreadState(thread)).currency;
+    }
+
+    /**
+     * A pool of tickets shared by a group of threads, such as the threads of
+     * one user or one process group.
+     *
+     * <p>
+     * A currency is backed by a number of base tickets, its <i>funding</i>.
+     * In a lottery the waiting members of a currency together hold its
+     * funding, divided among them in proportion to their own tickets, so the
+     * group's share of the processor does not depend on how many threads it
+     * has or how many tickets they issue themselves. Tickets transferred
+     * through locks, joins and <tt>beginTransfer()</tt> are base tickets, and
+     * are added to the share of the currency the receiver belongs to.
+     */
+    public class Currency {
+        private Currency(String name, int funding, int issueLimit) {
+            this.name = name;
+            this.funding = funding;
+            this.issueLimit = issueLimit;
+        }
+
+        /**
+         * Return the base tickets backing this currency.
+         *
+         * @return	the funding of this currency.
+         */
+        public int getFunding() {
+            return funding;
+        }
+
+        /**
+         * Change the base tickets backing this currency. Every queue this
+         * currency has waiters in is rebalanced in O(log n) time. Must be
+         * called with interrupts disabled.
+         *
+         * @param	funding	the new funding.
+         * @return	<tt>false</tt> if the funding would exceed
+         *		<tt>LotteryScheduler.fundingLimit</tt>.
+         */
+        public boolean setFunding(int funding) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+            Lib.assertTrue(funding >= 0);
+
+            if (totalFunding - this.funding + funding > fundingLimit)
+                return false;
+
+            totalFunding += funding - this.funding;
+            this.funding = funding;
+
+            for (LotteryQueue queue : queues)
+                queue.fundingChanged(this);
+
+            return true;
+        }
+
+        /**
+         * Return the tickets held by the members of this currency, not
+         * counting transfers.
+         *
+         * @return	the tickets issued in this currency.
+         */
+        public int getIssued() {
+            return issued;
+        }
+
+        public String toString() {
+            return name + " (funding " + funding + ", issued " + issued
+                + "/" + issueLimit + ")";
+        }
+
+        private String name;
+        private int funding;
+        private int issueLimit;
+        /** 成员线程自己持有的彩票总数 */
+        private int issued = 0;
+        /** 当前有该货币成员在排队的队列 */
+        private LinkedList<LotteryQueue> queues = new LinkedList<>();
+    }
+
     protected class LotteryThreadState extends ThreadState {
         public LotteryThreadState(KThread thread) {
             super(thread);
         }
 
-        public int getEffectivePriority() {
-            // 尝试使用之前保存的数据
-            if (KThread.getPriorityStatus()) {
-                return effectivePriority;
+        public void setPriority(int priority) {
+            // 货币内发行的彩票不能超过上限
+            if (currency != null && currency.issued - this.priority + priority
+                > currency.issueLimit) {
+                System.out.println("优先级设置失败");
+                return;
             }
 
-            // 重新计算有效优先级
-            effectivePriority = priority;
+            int oldPriority = this.priority;
+            super.setPriority(priority);
+
+            if (currency != null)
+                currency.issued += this.priority - oldPriority;
+        }
+
+        protected int computeEffectivePriority() {
+            // 自己的彩票加上所有等待者捐赠和借出的彩票
+            int result = priority;
+
+            for (PriorityQueue queue : owned) {
+                result += queue.getDonation();
+            }
 
-            // 遍历该线程的等待线程列表
-            for (KThread waitThread : thread.getWaitThreadList()) {
-                // 等待线程的有效优先级
-                effectivePriority += getThreadState(waitThread).getEffectivePriority();
+            for (ThreadState lender : lenders) {
+                result += lender.getEffectivePriority();
             }
 
-            return effectivePriority;
+            return result;
         }
+
+        /** The currency of this thread, or <tt>null</tt> for base tickets. */
+        protected Currency currency = null;
+        /** 排队时收到的捐赠，计入所属货币的份额 */
+        protected int queuedDonation = 0;
     }
+
+    /**
+     * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+     *
+     * <p>
+     * The lottery has two levels. Threads in the base currency hold their
+     * effective tickets directly; the waiting members of each other currency
+     * form a group that holds the currency's funding plus any tickets
+     * transferred to them. A draw first picks a thread or a group, and then,
+     * for a group, a member in proportion to its tickets.
+     *
+     * <p>
+     * Each level is a Fenwick tree over slots, so drawing the winner,
+     * changing a waiter's tickets and changing a currency's funding all take
+     * O(log n) time.
+     */
     protected class LotteryQueue extends PriorityQueue {
         LotteryQueue(boolean transferPriority) {
             super(transferPriority);
         }
 
+        protected void add(ThreadState state) {
+            LotteryThreadState lotteryState = (LotteryThreadState) state;
+            Currency currency = lotteryState.currency;
+
+            if (currency == null) {
+                state.bucket = threads.add(state, state.getEffectivePriority());
+                return;
+            }
+
+            Group group = groups.get(currency);
+            if (group == null) {
+                group = new Group(currency);
+                group.slot = threads.add(group, 0);
+                groups.put(currency, group);
+                currency.queues.add(this);
+            }
+
+            state.bucket = group.members.add(state, state.getEffectivePriority());
+            lotteryState.queuedDonation =
+                state.getEffectivePriority() - state.getPriority();
+            group.donations += lotteryState.queuedDonation;
+            updateGroup(group);
+        }
+
+        protected void addAll(List<ThreadState> states) {
+            // 基础货币的线程一起放入树中，其余逐个加入各自的分组
+            ArrayList<ThreadState> base = new ArrayList<>(states.size());
+            for (ThreadState state : states) {
+                if (((LotteryThreadState) state).currency == null)
+                    base.add(state);
+                else
+                    add(state);
+            }
+
+            Object[] items = base.toArray();
+            int[] tickets = new int[items.length];
+            for (int i = 0; i < items.length; i++)
+                tickets[i] = base.get(i).getEffectivePriority();
+
+            int[] slots = threads.addAll(items, tickets);
+            for (int i = 0; i < slots.length; i++)
+                base.get(i).bucket = slots[i];
+        }
+
+        protected void remove(ThreadState state) {
+            LotteryThreadState lotteryState = (LotteryThreadState) state;
+            Currency currency = lotteryState.currency;
+
+            if (currency == null) {
+                threads.remove(state.bucket);
+                state.bucket = -1;
+                return;
+            }
+
+            Group group = groups.get(currency);
+            group.members.remove(state.bucket);
+            group.donations -= lotteryState.queuedDonation;
+            lotteryState.queuedDonation = 0;
+            state.bucket = -1;
+
+            // 该货币在本队列中没有等待者了
+            if (group.members.size == 0) {
+                threads.remove(group.slot);
+                groups.remove(currency);
+                currency.queues.remove(this);
+            }
+            else {
+                updateGroup(group);
+            }
+        }
+
+        protected void priorityChanged(ThreadState state, int oldPriority) {
+            LotteryThreadState lotteryState = (LotteryThreadState) state;
+            Currency currency = lotteryState.currency;
+
+            // 抽奖与排队位置无关，只需修正该槽位的彩票数
+            if (currency == null) {
+                threads.set(state.bucket, state.getEffectivePriority());
+                return;
+            }
+
+            Group group = groups.get(currency);
+            group.members.set(state.bucket, state.getEffectivePriority());
+            group.donations -= lotteryState.queuedDonation;
+            lotteryState.queuedDonation =
+                state.getEffectivePriority() - state.getPriority();
+            group.donations += lotteryState.queuedDonation;
+            updateGroup(group);
+        }
+
+        /**
+         * Rebalance after the funding of a currency with waiters in this
+         * queue has changed.
+         */
+        void fundingChanged(Currency currency) {
+            updateGroup(groups.get(currency));
+
+            if (holder != null)
+                holder.updateEffectivePriority();
+        }
+
+        /**
+         * Recompute the tickets a group holds in the top-level lottery.
+         */
+        private void updateGroup(Group group) {
+            int tickets = group.donations;
+            if (group.members.sum > 0)
+                tickets += group.currency.funding;
+
+            threads.set(group.slot, tickets);
+        }
+
+        protected boolean isEmpty() {
+            return threads.size == 0;
+        }
+
+        protected int getDonation() {
+            return threads.sum;
+        }
+
+        public void print() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+            for (Object item : threads.items) {
+                if (item instanceof Group) {
+                    Group group = (Group) item;
+                    System.out.println(group.currency + ":");
+                    for (Object member : group.members.items) {
+                        if (member != null)
+                            System.out.println("    " + ((ThreadState) member).thread);
+                    }
+                }
+                else if (item != null) {
+                    System.out.println(((ThreadState) item).thread + "");
+                }
+            }
+        }
+
         protected ThreadState pickNextThread() {
-            // 计算彩票总数
-            int lotterySum = 0;
-            for (ThreadState lotteryThreadState : waitlist) {
-                if (transferPriority) {
-                    lotterySum += lotteryThreadState.getEffectivePriority();
-                } else {
-                    lotterySum += lotteryThreadState.getPriority();
+            // 当前存在可运行的线程
+            if (threads.sum == 0)
+                return null;
+
+            Object winner = threads.draw();
+            if (winner instanceof Group) {
+                Group group = (Group) winner;
+
+                // 只有转入的彩票时，成员平分机会
+                if (group.members.sum == 0)
+                    return (ThreadState) group.members.first();
+
+                return (ThreadState) group.members.draw();
+            }
+
+            return (ThreadState) winner;
+        }
+
+        /** 基础货币的线程和其他货币的分组 */
+        private TicketTree threads = new TicketTree();
+        /** 每种货币在本队列中的分组 */
+        private HashMap<Currency,Group> groups = new HashMap<>();
+    }
+
+    /**
+     * The waiting members of one currency in one lottery queue.
+     */
+    private static class Group {
+        Group(Currency currency) {
+            this.currency = currency;
+        }
+
+        final Currency currency;
+        /** 成员线程按各自彩票数抽奖 */
+        final TicketTree members = new TicketTree();
+        /** 该分组在上一级中的槽位 */
+        int slot;
+        /** 成员收到的捐赠总数 */
+        int donations = 0;
+    }
+
+    /**
+     * A lottery among a set of items. Each item occupies a slot, and a
+     * Fenwick tree over the slots holds the prefix sums of their tickets.
+     */
+    private static class TicketTree {
+        /**
+         * Add an item with the specified tickets, returning its slot.
+         */
+        int add(Object item, int tickets) {
+            // 没有空闲槽位时扩容
+            if (freeCount == 0) {
+                grow();
+            }
+
+            int slot = freeSlots[--freeCount];
+            items[slot] = item;
+            size++;
+            set(slot, tickets);
+
+            return slot;
+        }
+
+        /**
+         * Add a batch of items with the specified tickets, returning their
+         * slots. A batch that is large compared to the tree is indexed by
+         * rebuilding the tree in linear time rather than by adding the
+         * items one at a time.
+         */
+        int[] addAll(Object[] newItems, int[] tickets) {
+            while (freeCount < newItems.length) {
+                grow();
+            }
+
+            int[] slots = new int[newItems.length];
+            for (int i = 0; i < newItems.length; i++) {
+                slots[i] = freeSlots[--freeCount];
+                items[slots[i]] = newItems[i];
+            }
+            size += newItems.length;
+
+            // 逐个插入需要 n log m，重建需要 m
+            int depth = 32 - Integer.numberOfLeadingZeros(items.length);
+            if ((long) newItems.length * depth < items.length) {
+                for (int i = 0; i < slots.length; i++) {
+                    set(slots[i], tickets[i]);
                 }
+            }
+            else {
+                for (int i = 0; i < slots.length; i++) {
+                    weights[slots[i]] = tickets[i];
+                    sum += tickets[i];
+                }
+                rebuild();
+            }
+
+            return slots;
+        }
+
+        void remove(int slot) {
+            set(slot, 0);
+            items[slot] = null;
+            freeSlots[freeCount++] = slot;
+            size--;
+        }
+
+        /**
+         * Change the tickets of the item in the specified slot.
+         */
+        void set(int slot, int tickets) {
+            int delta = tickets - weights[slot];
+            if (delta == 0)
+                return;
 
+            weights[slot] = tickets;
+            sum += delta;
+
+            for (int i = slot + 1; i <= items.length; i += i & -i) {
+                tree[i] += delta;
             }
+        }
 
-            // 当前存在可运行的线程
-            if (lotterySum != 0) {
-                // 指定获胜彩票
-                int winLottery = Lib.random(lotterySum) + 1;
-
-                // 当前彩票计数
-                int currentLotteryNum = 0;
-
-                // 遍历所有线程，直到找到持有中奖彩票的线程
-                for (ThreadState lotteryThreadState: waitlist) {
-                    if (transferPriority) {
-                        currentLotteryNum += lotteryThreadState.getEffectivePriority();
-                    } else {
-                        currentLotteryNum += lotteryThreadState.getPriority();
-                    }
+        /**
+         * Draw a winning item, in proportion to tickets. Must only be called
+         * if <tt>sum</tt> is positive.
+         */
+        Object draw() {
+            // 指定获胜彩票
+            int winLottery = Lib.random(sum) + 1;
 
-                    // 找到获奖彩票
-                    if (currentLotteryNum >= winLottery) {
-                        return lotteryThreadState;
-                    }
+            // 在树中找到前缀和第一个不小于获胜彩票的槽位
+            int index = 0;
+            for (int step = Integer.highestOneBit(items.length); step != 0; step >>= 1) {
+                int next = index + step;
+                if (next <= items.length && tree[next] < winLottery) {
+                    index = next;
+                    winLottery -= tree[next];
                 }
             }
 
+            return items[index];
+        }
+
+        Object first() {
+            for (Object item : items) {
+                if (item != null)
+                    return item;
+            }
             return null;
         }
+
+        /**
+         * Double the number of slots, rebuilding the tree in linear time.
+         */
+        private void grow() {
+            int oldLength = items.length;
+            int newLength = Math.max(2 * oldLength, initialSlots);
+
+            items = Arrays.copyOf(items, newLength);
+            weights = Arrays.copyOf(weights, newLength);
+            rebuild();
+
+            // 新槽位按从小到大的顺序分配
+            freeSlots = Arrays.copyOf(freeSlots, newLength);
+            for (int slot = newLength - 1; slot >= oldLength; slot--) {
+                freeSlots[freeCount++] = slot;
+            }
+        }
+
+        /**
+         * Rebuild the tree from the weights in linear time.
+         */
+        private void rebuild() {
+            int length = items.length;
+
+            tree = new int[length + 1];
+            for (int i = 1; i <= length; i++) {
+                tree[i] += weights[i - 1];
+                int parent = i + (i & -i);
+                if (parent <= length) {
+                    tree[parent] += tree[i];
+                }
+            }
+        }
+
+        /** 每个槽位上的项目 */
+        Object[] items = new Object[0];
+        /** 每个槽位的彩票数 */
+        private int[] weights = new int[0];
+        /** 槽位彩票数的 Fenwick 树，下标从 1 开始 */
+        private int[] tree = new int[1];
+        /** 空闲槽位栈 */
+        private int[] freeSlots = new int[0];
+        private int freeCount = 0;
+        /** 项目数 */
+        int size = 0;
+        /** 彩票总数 */
+        int sum = 0;
     }
 
+    /**
+     * Measure how many lottery draws per second a ready queue with the
+     * specified number of waiting threads can make. Every draw is followed
+     * by putting the winner back, as when the running thread yields.
+     *
+     * @param	numThreads	the number of waiting threads.
+     * @param	numDraws	the number of draws to time.
+     */
+    public static void benchmark(int numThreads, int numDraws) {
+        LotteryScheduler scheduler = new LotteryScheduler();
+        ThreadQueue queue = scheduler.newThreadQueue(false);
+
+        boolean intStatus = Machine.interrupt().disable();
+
+        for (int i = 0; i < numThreads; i++) {
+            KThread thread = new KThread();
+            scheduler.getThreadState(thread).setPriority(1 + i % priorityMaximum);
+            queue.waitForAccess(thread);
+        }
+
+        long startTime = System.nanoTime();
+        for (int i = 0; i < numDraws; i++) {
+            queue.waitForAccess(queue.nextThread());
+        }
+        long elapsed = System.nanoTime() - startTime;
+
+        Machine.interrupt().restore(intStatus);
+
+        System.out.println("LotteryScheduler: " + numDraws + " draws among "
+                           + numThreads + " threads, "
+                           + (long) (numDraws * 1e9 / Math.max(elapsed, 1))
+                           + " decisions/s");
+    }
+
+    private static final int initialSlots = 8;
+
+    /** The most base tickets all currencies together may be funded with. */
+    private int fundingLimit =
+        Config.getInteger("LotteryScheduler.fundingLimit", 1 << 20);
+    private int totalFunding = 0;
 
     protected ThreadState getThreadState(KThread thread) {
         if (thread.schedulingState == null)
@@ -0,0 +1,408 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * A multi-level feedback queue scheduler. Threads are kept in a number of
+ * FIFO levels, and the next thread is always taken from the highest non-empty
+ * level.
+ *
+ * <p>
+ * Every thread starts at the top level. The processor time a thread uses is
+ * charged to it whenever it gives up the processor, whether it is preempted
+ * by <tt>Alarm.timerInterrupt()</tt> or blocks. Once a thread has used its
+ * allotment at a level it moves down one level, where the allotment is twice
+ * as long. A thread that blocks before using up its allotment, such as a
+ * thread waiting in <tt>SynchConsole.readByte()</tt>, therefore stays near the
+ * top and runs soon after it wakes, while CPU-bound threads sink to the
+ * lower levels and share the processor there in longer slices. Periodically
+ * all threads are boosted back to the top level, so that CPU-bound threads
+ * are not starved and threads that change behavior are reclassified.
+ *
+ * <p>
+ * The time slice also doubles at each level. At a timer interrupt the running
+ * thread only yields if its slice has run out, or if a thread at a higher
+ * level is ready; since the timer goes off about every
+ * <tt>Stats.TimerTicks</tt> ticks, a slice is rounded to the nearest
+ * interrupt.
+ *
+ * <p>
+ * The number of levels, the top-level allotment, the top-level time slice and
+ * the boost interval (all in ticks) are read from the
+ * <tt>MLFQScheduler.levels</tt>, <tt>MLFQScheduler.quantum</tt>,
+ * <tt>MLFQScheduler.timeSlice</tt> and <tt>MLFQScheduler.boostInterval</tt>
+ * keys in <tt>nachos.conf</tt>.
+ */
+public class MLFQScheduler extends Scheduler {
+    /**
+     * Allocate a new MLFQ scheduler.
+     */
+    public MLFQScheduler() {
+	numLevels = Config.getInteger("MLFQScheduler.levels", 3);
+	quantum = Config.getInteger("MLFQScheduler.quantum", 1000);
+	timeSlice = Config.getInteger("MLFQScheduler.timeSlice",
+				      Stats.TimerTicks);
+	boostInterval = Config.getInteger("MLFQScheduler.boostInterval", 20000);
+
+	Lib.assertTrue(numLevels > 0 && numLevels <= 31);
+	Lib.assertTrue(quantum > 0 && timeSlice > 0 && boostInterval > 0);
+    }
+
+    /**
+     * Allocate a new multi-level thread queue.
+     *
+     * @param	transferPriority	ignored. MLFQ schedulers do not
+     *					donate priority.
+     * @return	a new multi-level thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new MultiLevelQueue(false);
+    }
+
+    /**
+     * Allocate the ready queue, the only queue whose <tt>nextThread()</tt>
+     * starts a time slice.
+     *
+     * @return	a new multi-level ready queue.
+     */
+    public ThreadQueue newReadyQueue() {
+	readyQueue = new MultiLevelQueue(true);
+	return readyQueue;
+    }
+
+    /**
+     * Return <tt>true</tt> if the current thread has run for the time slice
+     * of its level, to the nearest timer interrupt, or if a thread at a
+     * higher level is ready.
+     *
+     * @return	<tt>true</tt> if the current thread should yield.
+     */
+    public boolean timeSliceExpired() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	charge();
+
+	int level = getThreadState(KThread.currentThread()).getLevel();
+	if (readyQueue != null && readyQueue.highestLevel() < level)
+	    return true;
+
+	long elapsed = Machine.timer().getTime() - sliceStartTime;
+	return elapsed + Stats.TimerTicks/2 >= timeSlice(level);
+    }
+
+    /**
+     * Get the current level of a thread; 0 is the highest level. Must be
+     * called with interrupts disabled.
+     *
+     * @param	thread	the thread to get the level of.
+     * @return	the thread's level.
+     */
+    public int getLevel(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).getLevel();
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (!(thread.schedulingState instanceof ThreadState))
+	    thread.schedulingState = new ThreadState();
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * Charge the time since the last charge to the current thread, and
+     * boost every thread if a boost interval has passed. Called whenever
+     * a queue changes, which includes every context switch.
+     */
+    private void charge() {
+	long time = Machine.timer().getTime();
+
+	if (time - lastBoostTime >= boostInterval) {
+	    boostCount++;
+	    lastBoostTime = time;
+	}
+
+	ThreadState state = getThreadState(KThread.currentThread());
+	state.checkBoost();
+	state.used += time - lastChargeTime;
+	lastChargeTime = time;
+
+	// 用完本级配额后降一级，最低一级只做轮转
+	if (state.used >= allotment(state.level) && state.level < numLevels-1) {
+	    state.level++;
+	    state.used = 0;
+	}
+    }
+
+    /**
+     * Return the number of ticks a thread may use at the specified level
+     * before being moved down.
+     */
+    private long allotment(int level) {
+	return (long) quantum << level;
+    }
+
+    /**
+     * Return the number of ticks a thread at the specified level runs before
+     * yielding to another thread.
+     */
+    private long timeSlice(int level) {
+	return (long) timeSlice << level;
+    }
+
+    /**
+     * The scheduling state of a thread: its level and the ticks it has used
+     * there.
+     */
+    protected class ThreadState {
+	/**
+	 * Return the level of the associated thread, applying any boost that
+	 * has happened since it was last looked at.
+	 *
+	 * @return	the level of the associated thread.
+	 */
+	int getLevel() {
+	    checkBoost();
+	    return level;
+	}
+
+	void checkBoost() {
+	    if (boost != boostCount) {
+		boost = boostCount;
+		level = 0;
+		used = 0;
+	    }
+	}
+
+	/** The level of the associated thread. */
+	int level = 0;
+	/** The ticks used at the current level. */
+	long used = 0;
+	/** The boost this state has been brought up to date with. */
+	int boost = boostCount;
+    }
+
+    private class MultiLevelQueue extends ThreadQueue {
+	MultiLevelQueue(boolean startsSlice) {
+	    this.startsSlice = startsSlice;
+
+	    levels = new ArrayList<LinkedHashSet<KThread>>(numLevels);
+	    for (int i=0; i<numLevels; i++)
+		levels.add(new LinkedHashSet<KThread>());
+	}
+
+	/**
+	 * Add a thread to the end of the level it belongs to. A thread that
+	 * is waiting for access after running has its run time charged first,
+	 * so a preempted thread that used up its allotment is queued one
+	 * level down.
+	 *
+	 * @param	thread	the thread to append to the queue.
+	 */
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    charge();
+	    checkBoost();
+
+	    int level = getThreadState(thread).getLevel();
+	    levels.get(level).add(thread);
+	    nonEmpty |= 1 << level;
+	}
+
+	/**
+	 * Remove the first thread of the highest non-empty level.
+	 *
+	 * @return	the next thread, or <tt>null</tt> if the queue is empty.
+	 */
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    charge();
+	    checkBoost();
+
+	    if (nonEmpty == 0)
+		return null;
+
+	    int level = Integer.numberOfTrailingZeros(nonEmpty);
+	    Iterator<KThread> first = levels.get(level).iterator();
+	    KThread thread = first.next();
+	    first.remove();
+	    if (levels.get(level).isEmpty())
+		nonEmpty &= ~(1 << level);
+
+	    // 从就绪队列取出的线程开始一个新的时间片
+	    if (startsSlice)
+		sliceStartTime = Machine.timer().getTime();
+
+	    return thread;
+	}
+
+	/**
+	 * Return the highest level that has a waiting thread.
+	 *
+	 * @return	the highest non-empty level, or <tt>numLevels</tt> if the
+	 *		queue is empty.
+	 */
+	int highestLevel() {
+	    checkBoost();
+
+	    if (nonEmpty == 0)
+		return numLevels;
+
+	    return Integer.numberOfTrailingZeros(nonEmpty);
+	}
+
+	/**
+	 * Remove a thread from whichever level it is waiting in.
+	 *
+	 * @param	thread	the thread to remove.
+	 * @return	<tt>true</tt> if the thread was on the queue.
+	 */
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    // 线程所在的级别可能已被提升，逐级查找
+	    for (int level=0; level<numLevels; level++) {
+		if (levels.get(level).remove(thread)) {
+		    if (levels.get(level).isEmpty())
+			nonEmpty &= ~(1 << level);
+		    return true;
+		}
+	    }
+
+	    return false;
+	}
+
+	/**
+	 * The specified thread has received exclusive access, without using
+	 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Assert that no
+	 * threads are waiting for access.
+	 */
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    Lib.assertTrue(nonEmpty == 0);
+	}
+
+	/**
+	 * Print out the contents of the queue.
+	 */
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<numLevels; i++) {
+		for (Iterator<KThread> j=levels.get(i).iterator(); j.hasNext(); )
+		    System.out.print(j.next() + " (" + i + ") ");
+	    }
+	}
+
+	/**
+	 * After a boost, move every waiting thread to the top level, keeping
+	 * the order of the levels.
+	 */
+	private void checkBoost() {
+	    if (boost == boostCount)
+		return;
+
+	    boost = boostCount;
+	    for (int i=1; i<numLevels; i++) {
+		levels.get(0).addAll(levels.get(i));
+		levels.get(i).clear();
+	    }
+	    nonEmpty = levels.get(0).isEmpty() ? 0 : 1;
+	}
+
+	/** Whether <tt>nextThread()</tt> starts a time slice. */
+	private boolean startsSlice;
+	/** The waiting threads, one FIFO per level. */
+	private List<LinkedHashSet<KThread>> levels;
+	/** Bit <i>i</i> is set if level <i>i</i> is not empty. */
+	private int nonEmpty = 0;
+	/** The boost this queue has been brought up to date with. */
+	private int boost = boostCount;
+    }
+
+    /**
+     * Run a mixed workload under the configured scheduler: CPU-bound threads
+     * that never block, and interactive threads that repeatedly sleep for a
+     * short time and then do a little work. Prints the mean and worst delay
+     * between an interactive thread becoming due and it running again, and
+     * the work done by the CPU-bound threads.
+     *
+     * @param	numCPU		the number of CPU-bound threads.
+     * @param	numInteractive	the number of interactive threads.
+     * @param	duration	the number of ticks to run for.
+     */
+    public static void mixedWorkloadTest(int numCPU, int numInteractive,
+					 final long duration) {
+	final long endTime = Machine.timer().getTime() + duration;
+	final long[] cpuWork = new long[1];
+	final long[] delays = new long[3];	// count, total, worst
+
+	KThread[] threads = new KThread[numCPU + numInteractive];
+	for (int i=0; i<numCPU; i++) {
+	    threads[i] = new KThread(new Runnable() {
+		    public void run() {
+			while (Machine.timer().getTime() < endTime) {
+			    // 开关一次中断，推进一个内核时钟单位
+			    Machine.interrupt().restore(Machine.interrupt().disable());
+			    cpuWork[0]++;
+			}
+		    }
+		}).setName("cpu" + i);
+	}
+	for (int i=numCPU; i<threads.length; i++) {
+	    threads[i] = new KThread(new Runnable() {
+		    public void run() {
+			while (Machine.timer().getTime() < endTime) {
+			    long due = Machine.timer().getTime() + 100;
+			    ThreadedKernel.alarm.waitUntil(100);
+
+			    long delay = Machine.timer().getTime() - due;
+			    delays[0]++;
+			    delays[1] += delay;
+			    delays[2] = Math.max(delays[2], delay);
+
+			    for (int j=0; j<5; j++)
+				Machine.interrupt().restore(Machine.interrupt().disable());
+			}
+		    }
+		}).setName("interactive" + i);
+	}
+
+	for (int i=0; i<threads.length; i++)
+	    threads[i].fork();
+	for (int i=0; i<threads.length; i++)
+	    threads[i].join();
+
+	System.out.println(ThreadedKernel.scheduler.getClass().getName()
+			   + ": interactive wakeups " + delays[0]
+			   + ", mean delay " + delays[1] / Math.max(delays[0], 1)
+			   + ", worst delay " + delays[2]
+			   + "; cpu work " + cpuWork[0]);
+    }
+
+    private int numLevels;
+    private int quantum;
+    private int timeSlice;
+    private int boostInterval;
+
+    private long lastChargeTime = 0;
+    private long lastBoostTime = 0;
+    private long sliceStartTime = 0;
+    private MultiLevelQueue readyQueue = null;
+    private int boostCount = 0;
+}
@@ -2,10 +2,11 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.List;
 
 /**
  * A scheduler that chooses threads based on their priorities.
@@ -32,6 +33,12 @@ public class PriorityScheduler extends Scheduler {
      * Allocate a new priority scheduler.
      */
     public PriorityScheduler() {
+	maxDonationDepth =
+	    Config.getInteger("PriorityScheduler.maxDonationDepth", 64);
+	deadlockFatal =
+	    Config.getBoolean("PriorityScheduler.deadlockFatal", false);
+
+	Lib.assertTrue(maxDonationDepth > 0);
     }
     
     /**
@@ -67,6 +74,70 @@ public class PriorityScheduler extends Scheduler {
 	getThreadState(thread).setPriority(priority);
     }
 
+    public void beginTransfer(KThread from, KThread to) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	endTransfer(from);
+
+	ThreadState lender = getThreadState(from);
+	ThreadState receiver = getThreadState(to);
+	lender.lendingTo = receiver;
+	receiver.lenders.add(lender);
+	receiver.updateEffectivePriority();
+    }
+
+    public void endTransfer(KThread from) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	ThreadState lender = getThreadState(from);
+	ThreadState receiver = lender.lendingTo;
+	if (receiver == null)
+	    return;
+
+	lender.lendingTo = null;
+	receiver.lenders.remove(lender);
+	receiver.updateEffectivePriority();
+    }
+
+    /**
+     * Return the thread that the specified thread is blocked behind, that
+     * is, the holder of the lock or join queue it is waiting on, or the
+     * thread it is lending its priority to. Following this repeatedly walks
+     * the donation graph from a waiter to the thread that receives its
+     * priority. Must be called with interrupts disabled.
+     *
+     * @param	thread	the thread.
+     * @return	the thread it is blocked behind, or <tt>null</tt>.
+     */
+    public KThread getBlocker(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	ThreadState blocker = getThreadState(thread).getBlocker();
+	return blocker == null ? null : blocker.thread;
+    }
+
+    /**
+     * Return the number of deadlocks detected so far. A deadlock is detected
+     * when a thread starts waiting behind a chain of threads that leads back
+     * to itself.
+     *
+     * @return	the number of deadlocks detected.
+     */
+    public int getDeadlockCount() {
+	return deadlockCount;
+    }
+
+    /**
+     * Return the threads in the most recently detected deadlock, in the order
+     * each waits behind the next.
+     *
+     * @return	the threads in the last deadlock, or an empty list if none
+     *		has been detected.
+     */
+    public List<KThread> getLastDeadlock() {
+	return lastDeadlock;
+    }
+
     public boolean increasePriority() {
 	boolean intStatus = Machine.interrupt().disable();
 		       
@@ -97,6 +168,51 @@ public class PriorityScheduler extends Scheduler {
 	return true;
     }
 
+    /**
+     * Test that a donation reaching a holder along two paths is taken back.
+     * <i>H</i> holds two locks; <i>L</i> waits on one, and <i>X</i> lends
+     * its priority to <i>L</i> and waits on the other. When <i>X</i> drops
+     * back to a low priority, <i>H</i> is reached first through <i>X</i>'s
+     * lock, while <i>L</i> still donates the old value, and again through
+     * <i>L</i> once it has been lowered.
+     */
+    public static void selfTest() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	// 使用单独的调度器，不影响系统调度器中的线程状态
+	PriorityScheduler scheduler = new PriorityScheduler();
+	KThread holder = new KThread().setName("priority holder");
+	KThread waiter = new KThread().setName("priority waiter");
+	KThread lender = new KThread().setName("priority lender");
+
+	ThreadQueue lockA = scheduler.newThreadQueue(true);
+	ThreadQueue lockB = scheduler.newThreadQueue(true);
+	lockA.acquire(holder);
+	lockB.acquire(holder);
+	lockB.waitForAccess(waiter);
+	scheduler.beginTransfer(lender, waiter);
+	lockA.waitForAccess(lender);
+
+	scheduler.setPriority(lender, priorityMaximum);
+	Lib.assertTrue(scheduler.getEffectivePriority(holder) == priorityMaximum);
+	Lib.assertTrue(scheduler.getEffectivePriority(waiter) == priorityMaximum);
+
+	// 两条路径上的捐赠都收回后，持有者回到自己的优先级
+	scheduler.setPriority(lender, priorityDefault);
+	Lib.assertTrue(scheduler.getEffectivePriority(waiter) == priorityDefault);
+	Lib.assertTrue(scheduler.getEffectivePriority(holder) == priorityDefault);
+
+	// 断开借出和等待，确认没有残留的捐赠
+	scheduler.setPriority(lender, priorityMaximum);
+	scheduler.endTransfer(lender);
+	Lib.assertTrue(scheduler.getEffectivePriority(waiter) == priorityDefault);
+	Lib.assertTrue(scheduler.getEffectivePriority(holder) == priorityMaximum);
+	Lib.assertTrue(lockA.nextThread() == lender);
+	Lib.assertTrue(scheduler.getEffectivePriority(holder) == priorityDefault);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
     /**
      * The default priority for a new thread. Do not change this value.
      */
@@ -125,12 +241,20 @@ public class PriorityScheduler extends Scheduler {
 
     /**
      * A <tt>ThreadQueue</tt> that sorts threads by priority.
+     *
+     * <p>
+     * Waiting threads are kept in one FIFO bucket per effective priority,
+     * with a bitmap of the non-empty buckets, so the next thread is found
+     * without looking at the other waiters. When a waiter's effective
+     * priority changes it is moved to the tail of its new bucket.
      */
     protected class PriorityQueue extends ThreadQueue {
-		public LinkedList<ThreadState> waitlist=new LinkedList<>();
-
-		PriorityQueue(boolean transferPriority) {
+	PriorityQueue(boolean transferPriority) {
 	    this.transferPriority = transferPriority;
+
+	    buckets = new ArrayList<LinkedHashSet<ThreadState>>(priorityMaximum+1);
+	    for (int i=0; i<=priorityMaximum; i++)
+		buckets.add(new LinkedHashSet<ThreadState>());
 	}
 //   将需要等待获得资源的线程加入一个等待队列等待调度。
 	public void waitForAccess(KThread thread) {
@@ -138,22 +262,67 @@ public class PriorityScheduler extends Scheduler {
 	    getThreadState(thread).waitForAccess(this);
 	}
 
+	/**
+	 * File a batch of waiting threads, then update the holder's effective
+	 * priority once rather than after every thread.
+	 *
+	 * @param	threads	the threads waiting for access.
+	 */
+	public void waitForAccessAll(Collection<KThread> threads) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+		ArrayList<ThreadState> states = new ArrayList<ThreadState>(threads.size());
+		for (KThread thread : threads) {
+			ThreadState state = getThreadState(thread);
+			state.startWaiting(this);
+			states.add(state);
+		}
+		addAll(states);
+
+		if (holder != null)
+			holder.updateEffectivePriority();
+	}
+
 	public void acquire(KThread thread) {
 	    Lib.assertTrue(Machine.interrupt().disabled());
 	    getThreadState(thread).acquire(this);
 	}
-		//返回下一个要执行的线程，遍历队列，计算出所有线程的有效优先级
-// （计算的时候是递归计算每个ThreadState队列中每个线程的有效优先级，
-// 大于自己的优先级，则将它的有效优先级赋给自己），取出有效优先级最大的线程执行。
+		//返回下一个要执行的线程：取出最高非空优先级桶中等待最久的线程，并由它获得该资源
 	public KThread nextThread() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
 		ThreadState next = pickNextThread();//下一个选择的线程
-		if(next == null)//如果为null,则返回null
+		if(next == null) {//如果为null,则资源空闲，返回null
+			setHolder(null);
 			return null;
-		waitlist.remove(next);
+		}
+		remove(next);
+		next.waitingOn = null;
+		setHolder(next);
 		return next.thread;
 	}
-		/** *返回<tt>nextThread()</tt>将返回的下一个线程，*不修改这个队列的状态。 * * @返回<tt>nextThread()</tt>将返回的下一个线程。
+
+	/**
+	 * Remove a waiting thread without giving it access, and take back the
+	 * priority it was donating to the holder.
+	 *
+	 * @param	thread	the thread to remove.
+	 * @return	<tt>true</tt> if the thread was waiting on this queue.
+	 */
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+		ThreadState state = getThreadState(thread);
+		if (state.waitingOn != this)
+			return false;
+
+		remove(state);
+		state.waitingOn = null;
+
+		// 持有者失去该线程的捐赠
+		if (holder != null)
+			holder.updateEffectivePriority();
+		return true;
+	}
+
 	/**
 	 * Return the next thread that <tt>nextThread()</tt> would return,
 	 * without modifying the state of this queue.
@@ -163,44 +332,124 @@ public class PriorityScheduler extends Scheduler {
 	 */
 		//找出优先级最大的线程
 	protected ThreadState pickNextThread() {
-		ThreadState nextThreadState = null;
-
-		// 当前最大优先级
-		int currentMaxPriority = -1;
-
-		// 遍历优先级队列中的每一个线程
-		for (ThreadState threadState : waitlist) {
-			// 根据是否可以传递优先级，获取到实际用于比较的优先级
-			int threadPriority;
-			if (transferPriority) {
-				// 线程包括其等待队列中最高的优先级
-				threadPriority = threadState.getEffectivePriority();
-			} else {
-				// 线程本身的优先级（未传递）
-				threadPriority = threadState.getPriority();
-			}
+		if (isEmpty())
+			return null;
 
-			// 选择优先级更高的线程
-			if (threadPriority > currentMaxPriority) {
-				nextThreadState = threadState;
-				currentMaxPriority = threadPriority;
-			}
-		}
+		// 位图中最高的置位即为当前最大优先级
+		int highest = 31 - Integer.numberOfLeadingZeros(bitmap);
 
-		if (waitlist.size() != 0) {
-			// 将保存的有效优先级设置为有效
-			KThread.setPriorityStatus(true);
-		}
+		return buckets.get(highest).iterator().next();
+	}
+
+	/**
+	 * Add a thread to the tail of the bucket for its effective priority.
+	 *
+	 * @param	state	the scheduling state of the waiting thread.
+	 */
+	protected void add(ThreadState state) {
+		int priority = state.getEffectivePriority();
+
+		buckets.get(priority).add(state);
+		bitmap |= 1 << priority;
+
+		state.bucket = priority;
+	}
+
+	/**
+	 * Add a batch of threads, in order. Queues whose index can be built for
+	 * many threads at once more cheaply than one at a time override this.
+	 *
+	 * @param	states	the scheduling states of the waiting threads.
+	 */
+	protected void addAll(List<ThreadState> states) {
+		for (ThreadState state : states)
+			add(state);
+	}
+
+	/**
+	 * Remove a thread from the bucket it is filed under.
+	 *
+	 * @param	state	the scheduling state of the waiting thread.
+	 */
+	protected void remove(ThreadState state) {
+		int priority = state.bucket;
+
+		buckets.get(priority).remove(state);
+		if (buckets.get(priority).isEmpty())
+			bitmap &= ~(1 << priority);
+
+		state.bucket = -1;
+	}
+
+	/**
+	 * Called when the effective priority of a waiting thread has changed
+	 * from <i>oldPriority</i>.
+	 *
+	 * @param	state		the scheduling state of the waiting thread.
+	 * @param	oldPriority	the thread's previous effective priority.
+	 */
+	protected void priorityChanged(ThreadState state, int oldPriority) {
+		remove(state);
+		add(state);
+	}
+
+	/**
+	 * Return <tt>true</tt> if no threads are waiting in this queue.
+	 *
+	 * @return	<tt>true</tt> if this queue is empty.
+	 */
+	protected boolean isEmpty() {
+		return bitmap == 0;
+	}
 
+	/**
+	 * Return the priority this queue donates to its holder: the highest
+	 * effective priority of any waiting thread.
+	 *
+	 * @return	the donated priority, or <tt>priorityMinimum</tt> if no
+	 *		thread is waiting.
+	 */
+	protected int getDonation() {
+		if (isEmpty())
+			return priorityMinimum;
 
-		return nextThreadState;
+		return 31 - Integer.numberOfLeadingZeros(bitmap);
+	}
+
+	/**
+	 * Make the specified thread the holder of this queue, so that it
+	 * receives the priority donated by the waiters.
+	 */
+	protected void setHolder(ThreadState state) {
+		// 不传递优先级的队列不需要记录持有者
+		if (!transferPriority)
+			return;
+
+		ThreadState oldHolder = holder;
+		if (oldHolder == state)
+			return;
+
+		holder = state;
+
+		// 旧持有者失去该队列的捐赠
+		if (oldHolder != null) {
+			oldHolder.owned.remove(this);
+			oldHolder.updateEffectivePriority();
+		}
+
+		if (state != null) {
+			state.owned.add(this);
+			state.updateEffectivePriority();
+		}
 	}
 	
 	public void print() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
 	    // implement me (if you want)
-		for (Iterator i=waitlist.iterator();i.hasNext();){
-			System.out.println(i.next()+"");
+		for (int i = buckets.size() - 1; i >= 0; i--) {
+			for (ThreadState state : buckets.get(i)) {
+				System.out.println(state.thread + " (priority " + i + ")");
+			}
 		}
 	}
 
@@ -209,6 +458,14 @@ public class PriorityScheduler extends Scheduler {
 	 * threads to the owning thread.
 	 */
 	public boolean transferPriority;
+
+	/** The thread that holds this queue, if it transfers priority. */
+	protected ThreadState holder = null;
+
+	/** The waiting threads, one FIFO bucket per priority. */
+	private List<LinkedHashSet<ThreadState>> buckets;
+	/** Bit <i>i</i> is set if bucket <i>i</i> is not empty. */
+	private int bitmap = 0;
     }
 
     /**
@@ -216,12 +473,23 @@ public class PriorityScheduler extends Scheduler {
      * priority, its effective priority, any objects it owns, and the queue
      * it's waiting for, if any.
      *
+     * <p>
+     * The effective priority is kept up to date as donations change: when a
+     * thread starts or stops waiting, or a priority is set, the new value is
+     * pushed along the chain of holders that the thread is waiting behind,
+     * stopping as soon as a holder's effective priority does not change, or
+     * after <tt>PriorityScheduler.maxDonationDepth</tt> holders.
+     *
+     * <p>
+     * Waiters, holders and lenders form the donation graph, which can be
+     * walked with <tt>getBlocker()</tt>. A thread that starts waiting behind
+     * a chain leading back to itself is reported as deadlocked, and if
+     * <tt>PriorityScheduler.deadlockFatal</tt> is set the machine stops.
+     *
      * @see	nachos.threads.KThread#schedulingState
      */
     protected class ThreadState {
-		// 有效优先级
-		protected int effectivePriority;
-		/**
+	/**
 	 * Allocate a new <tt>ThreadState</tt> object and associate it with the
 	 * specified thread.
 	 *
@@ -231,9 +499,6 @@ public class PriorityScheduler extends Scheduler {
 	    this.thread = thread;
 	    
 	    setPriority(priorityDefault);
-
-		// 设置有效优先级
-		this.effectivePriority = this.priority;
 	}
 
 	/**
@@ -251,25 +516,6 @@ public class PriorityScheduler extends Scheduler {
 	 * @return	the effective priority of the associated thread.
 	 */
 	public int getEffectivePriority() {
-		// 尝试使用之前保存的数据
-		if (KThread.getPriorityStatus()) {
-			return effectivePriority;
-		}
-
-		// 重新计算有效优先级
-		effectivePriority = priority;
-
-		// 遍历该线程的等待线程列表
-		for (KThread waitThread : thread.getWaitThreadList()) {
-			// 等待线程的有效优先级
-			int targetPriority = getThreadState(waitThread).getEffectivePriority();
-			// 如果等待线程的有效优先级更高
-			if (effectivePriority < targetPriority) {
-				// 进行优先级传递
-				effectivePriority = targetPriority;
-			}
-		}
-
 		return effectivePriority;
 	}
 
@@ -288,11 +534,88 @@ public class PriorityScheduler extends Scheduler {
 			return;
 		}
 
-		// 将保存的有效优先级设置为无效
-		KThread.setPriorityStatus(false);
-
 		this.priority = priority;
-	    // implement me
+
+		// 只更新受影响的有效优先级
+		updateEffectivePriority();
+	}
+
+	/**
+	 * Compute the effective priority of the associated thread from its own
+	 * priority and the donations of the queues it holds.
+	 *
+	 * @return	the effective priority.
+	 */
+	protected int computeEffectivePriority() {
+		int result = priority;
+
+		for (PriorityQueue queue : owned) {
+			result = Math.max(result, queue.getDonation());
+		}
+
+		for (ThreadState lender : lenders) {
+			result = Math.max(result, lender.getEffectivePriority());
+		}
+
+		return result;
+	}
+
+	/**
+	 * Recompute the effective priority of this thread and, while it keeps
+	 * changing, of each holder of the queue that the previous thread is
+	 * waiting on and each thread it is lending its priority to.
+	 */
+	protected void updateEffectivePriority() {
+		ThreadState state = this;
+		LinkedList<ThreadState> pending = null;
+
+		this.propagationDepth = 0;
+
+		while (state != null) {
+			ThreadState next = null;
+
+			// 同一个持有者可能经等待和借出两条路径被先后访问，只要有效优先级
+			// 还在变就要重新计算；循环等待由深度上限截断
+			if (state.propagationDepth <= maxDonationDepth) {
+				int newPriority = state.computeEffectivePriority();
+				int oldPriority = state.effectivePriority;
+
+				// 有效优先级未变，后面的持有者也不会变
+				if (newPriority != oldPriority) {
+					state.effectivePriority = newPriority;
+
+					PriorityQueue queue = state.waitingOn;
+					if (queue != null) {
+						// 在等待队列中换到新的优先级位置
+						queue.priorityChanged(state, oldPriority);
+
+						// 沿着持有者继续传递
+						next = queue.holder;
+					}
+
+					// 同时借出优先级时，接收者也要更新
+					if (state.lendingTo != null) {
+						state.lendingTo.propagationDepth =
+							state.propagationDepth + 1;
+						if (next == null) {
+							next = state.lendingTo;
+						}
+						else {
+							if (pending == null)
+								pending = new LinkedList<>();
+							pending.add(state.lendingTo);
+						}
+					}
+
+					if (next != null && next != state.lendingTo)
+						next.propagationDepth = state.propagationDepth + 1;
+				}
+			}
+
+			if (next == null && pending != null && !pending.isEmpty())
+				next = pending.removeFirst();
+			state = next;
+		}
 	}
 
 	/**
@@ -309,10 +632,85 @@ public class PriorityScheduler extends Scheduler {
 	 */
 	public void waitForAccess(PriorityQueue waitQueue) {
 	    // implement me
-		Lib.assertTrue(Machine.interrupt().disabled());
+		startWaiting(waitQueue);
 
 		// 将线程加入优先级队列中去
-		waitQueue.waitlist.add(this);
+		waitQueue.add(this);
+
+		// 向资源持有者捐赠优先级
+		if (waitQueue.holder != null) {
+			waitQueue.holder.updateEffectivePriority();
+		}
+	}
+
+	/**
+	 * Record that this thread is waiting on <i>waitQueue</i>, without yet
+	 * filing it there.
+	 *
+	 * @param	waitQueue	the queue the thread is about to wait on.
+	 */
+	void startWaiting(PriorityQueue waitQueue) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+		Lib.assertTrue(waitingOn == null);
+
+		if (waitQueue.transferPriority)
+			checkDeadlock(waitQueue.holder);
+
+		waitingOn = waitQueue;
+	}
+
+	/**
+	 * Return the thread this thread is blocked behind: the holder of the
+	 * priority-transferring queue it is waiting on, or else the thread it is
+	 * lending its priority to.
+	 *
+	 * @return	the blocking thread's state, or <tt>null</tt>.
+	 */
+	protected ThreadState getBlocker() {
+		if (waitingOn != null && waitingOn.transferPriority
+		    && waitingOn.holder != null)
+			return waitingOn.holder;
+
+		return lendingTo;
+	}
+
+	/**
+	 * Follow the donation graph from the thread this thread is about to
+	 * wait behind, and report a deadlock if it leads back to this thread.
+	 * Only the first <tt>maxDonationDepth</tt> threads are followed.
+	 *
+	 * @param	blocker	the thread about to be waited behind.
+	 */
+	private void checkDeadlock(ThreadState blocker) {
+		ThreadState state = blocker;
+		for (int depth=0; state != null && depth < maxDonationDepth; depth++) {
+			if (state == this) {
+				reportDeadlock(blocker);
+				return;
+			}
+			state = state.getBlocker();
+		}
+	}
+
+	private void reportDeadlock(ThreadState blocker) {
+		LinkedList<KThread> cycle = new LinkedList<>();
+		cycle.add(thread);
+		for (ThreadState state = blocker; state != this;
+		     state = state.getBlocker()) {
+			cycle.add(state.thread);
+		}
+
+		deadlockCount++;
+		lastDeadlock = cycle;
+
+		StringBuffer report = new StringBuffer("Deadlock detected: ");
+		for (KThread waiter : cycle)
+			report.append(waiter).append(" -> ");
+		report.append(thread);
+
+		System.out.println(report);
+		if (deadlockFatal)
+			Lib.assertNotReached(report.toString());
 	}
 
 	/**
@@ -333,7 +731,9 @@ public class PriorityScheduler extends Scheduler {
 		Lib.assertTrue(Machine.interrupt().disabled());
 
 		// 断言此时优先级队列中内容为空
-		Lib.assertTrue(waitQueue.waitlist.isEmpty());
+		Lib.assertTrue(waitQueue.isEmpty());
+
+		waitQueue.setHolder(this);
 	}	
 
 	/** The thread with which this object is associated. */	   
@@ -341,5 +741,34 @@ public class PriorityScheduler extends Scheduler {
 
 	/** The priority of the associated thread. */
 	protected int priority;
+
+	/** The effective priority of the associated thread. */
+	protected int effectivePriority;
+
+	/** The queue this thread is waiting on, or <tt>null</tt>. */
+	protected PriorityQueue waitingOn = null;
+
+	/** The bucket this thread is filed under while waiting, or -1. */
+	protected int bucket = -1;
+
+	/** The priority-transferring queues this thread holds. */
+	protected LinkedList<PriorityQueue> owned = new LinkedList<>();
+
+	/** The thread this thread is lending its priority to, or <tt>null</tt>. */
+	protected ThreadState lendingTo = null;
+
+	/** The threads lending their priority to this thread. */
+	protected LinkedList<ThreadState> lenders = new LinkedList<>();
+
+	/** The distance from the start of the current propagation. */
+	private int propagationDepth = 0;
     }
+
+    /** The longest chain of holders a donation is propagated along. */
+    private int maxDonationDepth;
+    /** Whether a detected deadlock stops the machine. */
+    private boolean deadlockFatal;
+
+    private int deadlockCount = 0;
+    private List<KThread> lastDeadlock = new LinkedList<>();
 }
@@ -0,0 +1,373 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.LinkedList;
+
+/**
+ * A <tt>ReadWriteLock</tt> is a lock that can be held either by any number of
+ * <i>readers</i> at once, or by a single <i>writer</i>. It suits read-mostly
+ * kernel structures, where readers need not exclude each other.
+ *
+ * <p>
+ * With writer preference, which is the default, a thread that wants to read
+ * waits if a writer holds the lock or is waiting for it, so a stream of
+ * readers cannot starve writers. Without it, readers only wait while a
+ * writer holds the lock. Either way, a waiting thread is handed the lock
+ * directly when it is released, and the order in which waiting readers and
+ * writers are woken is decided by the scheduler's <tt>ThreadQueue</tt>s.
+ *
+ * <p>
+ * Waiting threads lend their priority, through
+ * <tt>Scheduler.beginTransfer()</tt>, to the writer holding the lock, or to
+ * the longest-standing reader while readers hold it, so that a low-priority
+ * holder is not left behind threads of middling priority.
+ */
+public class ReadWriteLock {
+    /**
+     * Allocate a new read-write lock with writer preference. The lock will
+     * initially be free.
+     */
+    public ReadWriteLock() {
+	this(true);
+    }
+
+    /**
+     * Allocate a new read-write lock. The lock will initially be free.
+     *
+     * @param	preferWriters	<tt>true</tt> if new readers should wait
+     *				while a writer is waiting.
+     */
+    public ReadWriteLock(boolean preferWriters) {
+	this.preferWriters = preferWriters;
+    }
+
+    /**
+     * Acquire this lock for reading. The current thread must not already hold
+     * this lock.
+     */
+    public void acquireRead() {
+	Lib.assertTrue(!isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	if (writer != null || (preferWriters && waitingWriters > 0)) {
+	    waitingReaders++;
+	    block(readQueue, thread);
+	    // 被唤醒时已经被加入读者列表
+	}
+	else {
+	    readers.add(thread);
+	}
+
+	Lib.assertTrue(readers.contains(thread));
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Release this lock after reading.
+     */
+    public void releaseRead() {
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	Lib.assertTrue(readers.contains(thread));
+
+	boolean wasOwner = readers.getFirst() == thread;
+	readers.remove(thread);
+
+	// 最后一个读者离开时把锁交给等待的写者
+	if (readers.isEmpty()) {
+	    if (waitingWriters > 0)
+		wakeWriter();
+	}
+	else if (wasOwner) {
+	    relendWaiters();
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Acquire this lock for writing. The current thread must not already hold
+     * this lock.
+     */
+    public void acquireWrite() {
+	Lib.assertTrue(!isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	if (writer != null || !readers.isEmpty()) {
+	    waitingWriters++;
+	    block(writeQueue, thread);
+	}
+	else {
+	    writer = thread;
+	}
+
+	Lib.assertTrue(writer == thread);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Release this lock after writing.
+     */
+    public void releaseWrite() {
+	Lib.assertTrue(isWriteHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	writer = null;
+
+	if (waitingWriters > 0 && (preferWriters || waitingReaders == 0))
+	    wakeWriter();
+	else if (waitingReaders > 0)
+	    wakeReaders();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Test if the current thread holds this lock, for reading or writing.
+     *
+     * @return	<tt>true</tt> if the current thread holds this lock.
+     */
+    public boolean isHeldByCurrentThread() {
+	KThread thread = KThread.currentThread();
+	return writer == thread || readers.contains(thread);
+    }
+
+    /**
+     * Test if the current thread holds this lock for writing.
+     *
+     * @return	<tt>true</tt> if the current thread holds this lock for
+     *		writing.
+     */
+    public boolean isWriteHeldByCurrentThread() {
+	return writer == KThread.currentThread();
+    }
+
+    /**
+     * Wait on the specified queue, lending the current thread's priority to
+     * the owner of the lock until it is woken.
+     */
+    private void block(ThreadQueue queue, KThread thread) {
+	queue.waitForAccess(thread);
+	waiters.add(thread);
+	ThreadedKernel.scheduler.beginTransfer(thread, owner());
+
+	KThread.sleep();
+    }
+
+    /**
+     * Hand the lock to the next waiting writer.
+     */
+    private void wakeWriter() {
+	writer = writeQueue.nextThread();
+	waitingWriters--;
+	wake(writer);
+
+	relendWaiters();
+    }
+
+    /**
+     * Hand the lock to every waiting reader at once.
+     */
+    private void wakeReaders() {
+	KThread reader;
+	while ((reader = readQueue.nextThread()) != null) {
+	    readers.add(reader);
+	    wake(reader);
+	}
+	waitingReaders = 0;
+
+	relendWaiters();
+    }
+
+    private void wake(KThread thread) {
+	waiters.remove(thread);
+	ThreadedKernel.scheduler.endTransfer(thread);
+	thread.ready();
+    }
+
+    /**
+     * The owner of the lock has changed, so point every waiter's priority
+     * transfer at the new owner.
+     */
+    private void relendWaiters() {
+	KThread owner = owner();
+	for (KThread waiter : waiters)
+	    ThreadedKernel.scheduler.beginTransfer(waiter, owner);
+    }
+
+    /**
+     * Return the thread that waiters lend their priority to: the writer, or
+     * else the longest-standing reader.
+     */
+    private KThread owner() {
+	return writer != null ? writer : readers.getFirst();
+    }
+
+    /**
+     * Test that readers share this lock, that a writer excludes everyone,
+     * and that with writer preference a new reader waits behind a waiting
+     * writer.
+     */
+    public static void selfTest() {
+	final ReadWriteLock lock = new ReadWriteLock();
+	final int[] order = new int[3];
+	final int[] entered = new int[1];
+
+	// 持有读锁时，其他读者可以直接进入
+	lock.acquireRead();
+	KThread reader = new KThread(new Runnable() {
+		public void run() {
+		    lock.acquireRead();
+		    order[0] = ++entered[0];
+		    lock.releaseRead();
+		}
+	    }).setName("rwlock reader");
+	reader.fork();
+	reader.join();
+	Lib.assertTrue(order[0] == 1);
+
+	// 写者要等读者离开；写者等待时，新来的读者也要等
+	KThread writer = new KThread(new Runnable() {
+		public void run() {
+		    lock.acquireWrite();
+		    order[1] = ++entered[0];
+		    KThread.yield();
+		    lock.releaseWrite();
+		}
+	    }).setName("rwlock writer");
+	writer.fork();
+	while (lock.waitingWriters == 0)
+	    KThread.yield();
+
+	KThread lateReader = new KThread(new Runnable() {
+		public void run() {
+		    lock.acquireRead();
+		    Lib.assertTrue(lock.writer == null);
+		    order[2] = ++entered[0];
+		    lock.releaseRead();
+		}
+	    }).setName("rwlock late reader");
+	lateReader.fork();
+	while (lock.waitingReaders == 0)
+	    KThread.yield();
+
+	Lib.assertTrue(order[1] == 0 && order[2] == 0);
+	lock.releaseRead();
+
+	writer.join();
+	lateReader.join();
+	Lib.assertTrue(order[1] == 2 && order[2] == 3);
+
+	// 持有写锁时，读者和写者都要等待
+	lock.acquireWrite();
+	KThread blocked = new KThread(new Runnable() {
+		public void run() {
+		    lock.acquireRead();
+		    entered[0]++;
+		    lock.releaseRead();
+		}
+	    }).setName("rwlock blocked reader");
+	blocked.fork();
+	while (lock.waitingReaders == 0)
+	    KThread.yield();
+	Lib.assertTrue(entered[0] == 3);
+	lock.releaseWrite();
+	blocked.join();
+	Lib.assertTrue(entered[0] == 4);
+    }
+
+    /**
+     * Measure how long a mix of readers and writers takes to get through a
+     * fixed amount of work, first with a <tt>ReadWriteLock</tt> and then with
+     * a plain <tt>Lock</tt>. Each critical section does a little busy work
+     * and then sleeps, as if waiting for I/O; only the read-write lock lets
+     * the other readers go ahead meanwhile.
+     *
+     * @param	numThreads	the number of threads.
+     * @param	numOps		the number of critical sections per thread.
+     * @param	readPercent	the percentage of critical sections that
+     *				only read.
+     */
+    public static void benchmark(int numThreads, int numOps,
+				 int readPercent) {
+	long rwTicks = runBenchmark(numThreads, numOps, readPercent, true);
+	long lockTicks = runBenchmark(numThreads, numOps, readPercent, false);
+
+	System.out.println("ReadWriteLock: " + numThreads + " threads, "
+			   + readPercent + "% reads: " + rwTicks
+			   + " ticks, Lock: " + lockTicks + " ticks");
+    }
+
+    private static long runBenchmark(int numThreads, final int numOps,
+				     final int readPercent,
+				     final boolean readWrite) {
+	final ReadWriteLock rwLock = new ReadWriteLock();
+	final Lock lock = new Lock();
+
+	long startTime = Machine.timer().getTime();
+
+	KThread[] threads = new KThread[numThreads];
+	for (int i=0; i<numThreads; i++) {
+	    final int id = i;
+	    threads[i] = new KThread(new Runnable() {
+		    public void run() {
+			for (int j=0; j<numOps; j++) {
+			    boolean read = (id * numOps + j) % 100 < readPercent;
+
+			    if (!readWrite)
+				lock.acquire();
+			    else if (read)
+				rwLock.acquireRead();
+			    else
+				rwLock.acquireWrite();
+
+			    // 临界区内做一点工作，再等待一次模拟的 I/O
+			    for (int k=0; k<5; k++)
+				Machine.interrupt().restore(Machine.interrupt().disable());
+			    ThreadedKernel.alarm.waitUntil(100);
+
+			    if (!readWrite)
+				lock.release();
+			    else if (read)
+				rwLock.releaseRead();
+			    else
+				rwLock.releaseWrite();
+
+			    KThread.yield();
+			}
+		    }
+		}).setName("rw" + i);
+	}
+
+	for (int i=0; i<numThreads; i++)
+	    threads[i].fork();
+	for (int i=0; i<numThreads; i++)
+	    threads[i].join();
+
+	return Machine.timer().getTime() - startTime;
+    }
+
+    private boolean preferWriters;
+
+    private KThread writer = null;
+    /** The threads holding the lock for reading, oldest first. */
+    private LinkedList<KThread> readers = new LinkedList<KThread>();
+    /** Every thread waiting for the lock. */
+    private LinkedList<KThread> waiters = new LinkedList<KThread>();
+    private int waitingReaders = 0;
+    private int waitingWriters = 0;
+
+    private ThreadQueue readQueue =
+	ThreadedKernel.scheduler.newThreadQueue(false);
+    private ThreadQueue writeQueue =
+	ThreadedKernel.scheduler.newThreadQueue(false);
+}
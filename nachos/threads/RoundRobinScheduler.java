@@ -2,7 +2,7 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.LinkedList;
+import java.util.LinkedHashSet;
 import java.util.Iterator;
 
 /**
@@ -55,7 +55,10 @@ public class RoundRobinScheduler extends Scheduler {
 	    if (waitQueue.isEmpty())
 		return null;
 
-	    return (KThread) waitQueue.removeFirst();
+	    Iterator<KThread> first = waitQueue.iterator();
+	    KThread thread = first.next();
+	    first.remove();
+	    return thread;
 	}
 
 	/**
@@ -79,6 +82,19 @@ public class RoundRobinScheduler extends Scheduler {
 		System.out.print((KThread) i.next() + " ");
 	}
 
-	private LinkedList<KThread> waitQueue = new LinkedList<KThread>();
+	/**
+	 * Remove a thread from anywhere in the queue.
+	 *
+	 * @param	thread	the thread to remove.
+	 * @return	<tt>true</tt> if the thread was on the queue.
+	 */
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    return waitQueue.remove(thread);
+	}
+
+	/** The waiting threads in arrival order, with constant-time removal. */
+	private LinkedHashSet<KThread> waitQueue = new LinkedHashSet<KThread>();
     }
 }
@@ -52,6 +52,31 @@ public abstract class Scheduler {
      */
     public abstract ThreadQueue newThreadQueue(boolean transferPriority);
 
+    /**
+     * Allocate the queue of threads ready to run. By default this is an
+     * ordinary queue that does not transfer priority, but a scheduler may
+     * organize the ready threads differently, for example with one run queue
+     * per processor.
+     *
+     * @return	a new ready queue.
+     */
+    public ThreadQueue newReadyQueue() {
+	return newThreadQueue(false);
+    }
+
+    /**
+     * Return <tt>true</tt> if the current thread has used up its time slice,
+     * so that <tt>Alarm.timerInterrupt()</tt> should make it yield. By default
+     * every timer interrupt ends the slice. Must be called with interrupts
+     * disabled.
+     *
+     * @return	<tt>true</tt> if the current thread should yield.
+     */
+    public boolean timeSliceExpired() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	return true;
+    }
+
     /**
      * Get the priority of the specified thread. Must be called with
      * interrupts disabled.
@@ -131,6 +156,76 @@ public abstract class Scheduler {
 	setPriority(KThread.currentThread(), priority);
     }
 
+    /**
+     * Lend the priority of <i>from</i> to <i>to</i>, until
+     * <tt>endTransfer(from)</tt> is called. This is used when <i>from</i> is
+     * about to block waiting for <i>to</i> to do something for it, but not
+     * through a lock or a join, for example when a process waits for a child
+     * process to exit. Must be called with interrupts disabled.
+     *
+     * <p>
+     * A priority scheduler donates <i>from</i>'s effective priority to
+     * <i>to</i>; a lottery scheduler adds <i>from</i>'s tickets to those of
+     * <i>to</i>. Other schedulers ignore transfers.
+     *
+     * @param	from	the thread lending its priority.
+     * @param	to	the thread receiving it.
+     */
+    public void beginTransfer(KThread from, KThread to) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+    }
+
+    /**
+     * End a transfer started by <tt>beginTransfer(from, to)</tt>. Does
+     * nothing if <i>from</i> is not lending its priority. Must be called with
+     * interrupts disabled.
+     *
+     * @param	from	the thread lending its priority.
+     */
+    public void endTransfer(KThread from) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+    }
+
+    /**
+     * Tell the scheduler that the specified thread is finishing, so that it
+     * can release anything the thread holds, such as tickets counted against
+     * a currency. Called by <tt>KThread.finish()</tt> with interrupts
+     * disabled.
+     *
+     * @param	thread	the finishing thread.
+     */
+    public void threadFinished(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+    }
+
+    /**
+     * Make the specified thread a periodic real-time thread, which may run for
+     * up to <tt>budget</tt> ticks in every <tt>period</tt> ticks, or return it
+     * to best-effort scheduling if <tt>budget</tt> is 0. Must be called with
+     * interrupts disabled.
+     *
+     * @param	thread	the thread to set the reservation of.
+     * @param	period	the length of each period, in ticks.
+     * @param	budget	the ticks the thread may run in each period.
+     * @return	<tt>true</tt> if the scheduler admitted the thread.
+     */
+    public boolean setRealTime(KThread thread, long period, long budget) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	return false;
+    }
+
+    /**
+     * Make the current thread a periodic real-time thread. Equivalent to
+     * <tt>setRealTime(KThread.currentThread(), period, budget)</tt>.
+     *
+     * @param	period	the length of each period, in ticks.
+     * @param	budget	the ticks the thread may run in each period.
+     * @return	<tt>true</tt> if the scheduler admitted the thread.
+     */
+    public boolean setRealTime(long period, long budget) {
+	return setRealTime(KThread.currentThread(), period, budget);
+    }
+
     /**
      * If possible, raise the priority of the current thread in some
      * scheduler-dependent way.
@@ -39,7 +39,9 @@ public class Semaphore {
 
 	if (value == 0) {
 	    waitQueue.waitForAccess(KThread.currentThread());
+	    SyncProfiler.block(this, site);
 	    KThread.sleep();
+	    SyncProfiler.unblock();
 	}
 	else {
 	    value--;
@@ -48,6 +50,37 @@ public class Semaphore {
 	Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Like <tt>P()</tt>, but give up if the semaphore is still zero after
+     * <i>ticks</i> clock ticks.
+     *
+     * @param	ticks	the maximum number of clock ticks to wait.
+     * @return	<tt>true</tt> if the semaphore was decremented, or
+     *		<tt>false</tt> if the wait timed out.
+     */
+    public boolean tryP(long ticks) {
+	boolean intStatus = Machine.interrupt().disable();
+	boolean acquired = true;
+
+	if (value == 0) {
+	    // V() 直接把值交给被唤醒的线程，超时则没有得到
+	    if (ticks <= 0)
+		acquired = false;
+	    else {
+		waitQueue.waitForAccess(KThread.currentThread());
+		SyncProfiler.block(this, site);
+		acquired = !ThreadedKernel.alarm.sleepOn(waitQueue, ticks);
+		SyncProfiler.unblock();
+	    }
+	}
+	else {
+	    value--;
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return acquired;
+    }
+
     /**
      * Atomically increment this semaphore and wake up at most one other thread
      * sleeping on this semaphore.
@@ -96,9 +129,15 @@ public class Semaphore {
 	    ping.V();
 	    pong.P();
 	}
+
+	// 定时等待：没有 V() 时超时，有 V() 时成功
+	Lib.assertTrue(!ping.tryP(100));
+	ping.V();
+	Lib.assertTrue(ping.tryP(100));
     }
 
     private int value;
+    private String site = SyncProfiler.site(this);
     private ThreadQueue waitQueue =
 	ThreadedKernel.scheduler.newThreadQueue(false);
 }
@@ -0,0 +1,191 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Comparator;
+import java.util.TreeSet;
+
+/**
+ * A scheduler that shares the processor in proportion to tickets, like a
+ * lottery scheduler, but deterministically.
+ *
+ * <p>
+ * Each waiting thread has a <i>pass</i> value, and the thread with the lowest
+ * pass is always chosen next. When a thread is chosen its pass advances by its
+ * <i>stride</i>, which is inversely proportional to its tickets, so over any
+ * interval a thread's share of the picks differs from its ticket share by at
+ * most one pick. Waiters are kept in a balanced tree ordered by pass, so a
+ * pick takes O(log n) time.
+ *
+ * <p>
+ * Only the ready queue advances passes. Lock and join queues also hand out
+ * the resource to the waiter with the lowest pass, the one furthest behind
+ * its share of the processor, but leave passes alone, so contention for
+ * locks does not change anyone's share of the processor.
+ *
+ * <p>
+ * Tickets are the priorities set with <tt>setPriority()</tt> and are
+ * transferred through locks and joins the same way as in the lottery
+ * scheduler: a holder's effective tickets are its own plus those of every
+ * thread waiting for it. A thread with no tickets only runs when no thread
+ * with tickets is waiting.
+ */
+public class StrideScheduler extends LotteryScheduler {
+    /**
+     * Allocate a new stride scheduler.
+     */
+    public StrideScheduler() {
+    }
+
+    /**
+     * Allocate a new stride thread queue.
+     *
+     * @param	transferPriority	<tt>true</tt> if this queue should
+     *					transfer tickets from waiting threads
+     *					to the owning thread.
+     * @return	a new stride thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+        return new StrideQueue(transferPriority, false);
+    }
+
+    /**
+     * Allocate the ready queue, the only queue that advances passes.
+     *
+     * @return	a new stride ready queue.
+     */
+    public ThreadQueue newReadyQueue() {
+        return new StrideQueue(false, true);
+    }
+
+    protected ThreadState getThreadState(KThread thread) {
+        if (thread.schedulingState == null)
+            thread.schedulingState = new StrideThreadState(thread);
+
+        return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * Return the stride of a thread with the specified number of tickets.
+     */
+    private static long stride(int tickets) {
+        return stride1 / Math.max(tickets, 1);
+    }
+
+    protected class StrideThreadState extends LotteryThreadState {
+        public StrideThreadState(KThread thread) {
+            super(thread);
+        }
+
+        /** 下一次被就绪队列选中时的虚拟时间 */
+        protected long pass = 0;
+        /** 进入等待队列的顺序，用于打破 pass 相同的情况 */
+        protected long sequence = 0;
+        /** 排队时是否没有彩票 */
+        protected boolean noTickets = false;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that always returns the waiting thread with the
+     * lowest pass.
+     */
+    protected class StrideQueue extends PriorityQueue {
+        StrideQueue(boolean transferPriority, boolean ready) {
+            super(transferPriority);
+            this.ready = ready;
+        }
+
+        protected void add(ThreadState state) {
+            StrideThreadState strideState = (StrideThreadState) state;
+
+            // 不能落后于队列的虚拟时间，否则刚醒来的线程会长期独占处理器
+            if (ready)
+                strideState.pass = Math.max(strideState.pass, virtualTime);
+            strideState.sequence = sequenceCount++;
+            strideState.noTickets = state.getEffectivePriority() == 0;
+
+            waitlist.add(strideState);
+            ticketSum += state.getEffectivePriority();
+        }
+
+        protected void remove(ThreadState state) {
+            waitlist.remove(state);
+            ticketSum -= state.getEffectivePriority();
+        }
+
+        protected void priorityChanged(ThreadState state, int oldPriority) {
+            StrideThreadState strideState = (StrideThreadState) state;
+            int newPriority = state.getEffectivePriority();
+
+            // 按新旧彩票比例缩放剩余的 pass
+            waitlist.remove(strideState);
+            long remain = strideState.pass - virtualTime;
+            if (ready && remain > 0) {
+                strideState.pass = virtualTime
+                    + remain * Math.max(oldPriority, 1) / Math.max(newPriority, 1);
+            }
+            strideState.noTickets = newPriority == 0;
+            waitlist.add(strideState);
+
+            ticketSum += newPriority - oldPriority;
+        }
+
+        protected boolean isEmpty() {
+            return waitlist.isEmpty();
+        }
+
+        protected int getDonation() {
+            return ticketSum;
+        }
+
+        protected ThreadState pickNextThread() {
+            if (waitlist.isEmpty())
+                return null;
+
+            return waitlist.first();
+        }
+
+        public KThread nextThread() {
+            KThread thread = super.nextThread();
+            if (thread == null || !ready)
+                return thread;
+
+            // 推进队列的虚拟时间和被选中线程的 pass
+            StrideThreadState next = (StrideThreadState) getThreadState(thread);
+            virtualTime = next.pass;
+            next.pass += stride(next.getEffectivePriority());
+
+            return thread;
+        }
+
+        public void print() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+            for (StrideThreadState state : waitlist) {
+                System.out.println(state.thread + " (pass " + state.pass + ")");
+            }
+        }
+
+        /** 按 pass 排序的等待线程，没有彩票的线程排在最后 */
+        private TreeSet<StrideThreadState> waitlist =
+            new TreeSet<>(new Comparator<StrideThreadState>() {
+                public int compare(StrideThreadState a, StrideThreadState b) {
+                    if (a.noTickets != b.noTickets)
+                        return a.noTickets ? 1 : -1;
+                    if (a.pass != b.pass)
+                        return a.pass < b.pass ? -1 : 1;
+                    return Long.compare(a.sequence, b.sequence);
+                }
+            });
+        /** 是否为就绪队列；只有就绪队列推进 pass */
+        private boolean ready;
+        /** 最近被选中线程的 pass */
+        private long virtualTime = 0;
+        /** 等待线程的有效彩票总数 */
+        private int ticketSum = 0;
+    }
+
+    /** The stride of a thread holding one ticket. */
+    private static final long stride1 = 1 << 20;
+
+    private static long sequenceCount = 0;
+}
@@ -0,0 +1,238 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An optional instrumented mode for the blocking primitives: <tt>Lock</tt>,
+ * <tt>Semaphore</tt>, <tt>Condition2</tt> and <tt>KThread.join()</tt>. It is
+ * turned on by setting <tt>SyncProfiler.enabled</tt> in
+ * <tt>nachos.conf</tt>; otherwise every hook returns at once.
+ *
+ * <p>
+ * Each primitive records where it was created. While a thread is blocked,
+ * the profiler keeps an edge of the <i>wait-for graph</i> from the thread to
+ * the primitive, and through it to the thread that owns the primitive: the
+ * holder of a lock, or the thread being joined. Semaphores and condition
+ * variables have no owner. Whenever a thread blocks, the edges are followed
+ * from the owner; if they lead back to the blocking thread, the cycle is
+ * printed and, unless <tt>SyncProfiler.haltOnDeadlock</tt> is
+ * <tt>false</tt>, the machine halts rather than spinning in the idle thread.
+ *
+ * <p>
+ * The ticks threads spend blocked are added up per creation site, and
+ * <tt>Machine.halt()</tt> prints them, busiest site first, along with any
+ * threads that are still blocked.
+ */
+public class SyncProfiler {
+    private SyncProfiler() {
+    }
+
+    /**
+     * <tt>true</tt> if the primitives are instrumented.
+     */
+    static final boolean enabled =
+	Config.getBoolean("SyncProfiler.enabled", false);
+
+    private static final boolean haltOnDeadlock =
+	Config.getBoolean("SyncProfiler.haltOnDeadlock", true);
+
+    static {
+	if (enabled) {
+	    Machine.addHaltHandler(new Runnable() {
+		    public void run() { report(); }
+		});
+	}
+    }
+
+    /**
+     * Return where the specified primitive is being created: the caller of
+     * its outermost constructor. Called from the primitive's constructor.
+     *
+     * @param	resource	the primitive being created.
+     * @return	the creation site, or <tt>null</tt> if profiling is off.
+     */
+    static String site(Object resource) {
+	if (!enabled)
+	    return null;
+
+	StackTraceElement[] trace = new Throwable().getStackTrace();
+	for (int i=1; i<trace.length; i++) {
+	    if (!trace[i].getMethodName().equals("<init>")
+		|| !isClassOf(resource, trace[i].getClassName()))
+		return trace[i].toString();
+	}
+
+	return "(unknown)";
+    }
+
+    private static boolean isClassOf(Object resource, String className) {
+	for (Class<?> c = resource.getClass(); c != null; c = c.getSuperclass()) {
+	    if (c.getName().equals(className))
+		return true;
+	}
+	return false;
+    }
+
+    /**
+     * The current thread is about to block on the specified primitive.
+     * Record the wait, and check whether it closes a cycle. Must be called
+     * with interrupts disabled.
+     *
+     * @param	resource	the primitive.
+     * @param	site		the primitive's creation site.
+     */
+    static void block(Object resource, String site) {
+	if (!enabled)
+	    return;
+
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	KThread thread = KThread.currentThread();
+	waits.put(thread, new Wait(resource, site, Machine.timer().getTime()));
+
+	checkDeadlock(thread);
+    }
+
+    /**
+     * The current thread has stopped waiting, either because it was woken
+     * or because its wait timed out. Must be called with interrupts
+     * disabled.
+     */
+    static void unblock() {
+	if (!enabled)
+	    return;
+
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Wait wait = waits.remove(KThread.currentThread());
+	if (wait == null)
+	    return;
+
+	String key = wait.describe();
+	long[] totals = sites.get(key);
+	if (totals == null) {
+	    totals = new long[2];
+	    sites.put(key, totals);
+	}
+	totals[0]++;
+	totals[1] += Machine.timer().getTime() - wait.startTime;
+    }
+
+    /**
+     * Return the thread that owns the specified primitive, and so is the
+     * next thread along the wait-for graph.
+     */
+    private static KThread ownerOf(Object resource) {
+	if (resource instanceof Lock)
+	    return ((Lock) resource).getHolder();
+	if (resource instanceof KThread)
+	    return (KThread) resource;
+	return null;
+    }
+
+    private static void checkDeadlock(KThread thread) {
+	StringBuffer cycle = new StringBuffer(thread.toString());
+
+	// 沿等待边前进，步数不超过等待中的线程数
+	KThread next = thread;
+	for (int i=0; i<=waits.size(); i++) {
+	    Wait wait = waits.get(next);
+	    if (wait == null)
+		return;
+
+	    next = ownerOf(wait.resource);
+	    if (next == null)
+		return;
+
+	    cycle.append(" -(" + wait.describe() + ")-> " + next);
+	    if (next == thread)
+		break;
+	}
+	if (next != thread)
+	    return;
+
+	deadlocks++;
+	System.out.println("SyncProfiler: deadlock: " + cycle);
+
+	if (haltOnDeadlock)
+	    Machine.halt();
+    }
+
+    /**
+     * Return the number of deadlocks found so far.
+     *
+     * @return	the number of wait-for cycles found.
+     */
+    public static long getDeadlocks() {
+	return deadlocks;
+    }
+
+    /**
+     * Print the blocked time per creation site, and the threads that are
+     * still blocked.
+     */
+    public static void report() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	List<Map.Entry<String,long[]>> entries =
+	    new ArrayList<Map.Entry<String,long[]>>(sites.entrySet());
+	Collections.sort(entries, new Comparator<Map.Entry<String,long[]>>() {
+		public int compare(Map.Entry<String,long[]> a,
+				   Map.Entry<String,long[]> b) {
+		    return Long.compare(b.getValue()[1], a.getValue()[1]);
+		}
+	    });
+
+	System.out.println("SyncProfiler: blocked ticks by creation site");
+	for (Map.Entry<String,long[]> entry : entries) {
+	    System.out.println(String.format("%10d ticks %8d waits  %s",
+					     entry.getValue()[1],
+					     entry.getValue()[0],
+					     entry.getKey()));
+	}
+
+	long now = Machine.timer().getTime();
+	for (Map.Entry<KThread,Wait> entry : waits.entrySet()) {
+	    Wait wait = entry.getValue();
+	    KThread owner = ownerOf(wait.resource);
+	    System.out.println("SyncProfiler: " + entry.getKey()
+			       + " still blocked for " + (now - wait.startTime)
+			       + " ticks on " + wait.describe()
+			       + (owner != null ? ", owned by " + owner : ""));
+	}
+	System.out.println();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    private static class Wait {
+	Wait(Object resource, String site, long startTime) {
+	    this.resource = resource;
+	    this.site = site;
+	    this.startTime = startTime;
+	}
+
+	String describe() {
+	    String kind = resource instanceof KThread ? "join"
+		: resource.getClass().getSimpleName();
+	    return kind + " at " + site;
+	}
+
+	Object resource;
+	String site;
+	long startTime;
+    }
+
+    /** The wait-for edge of every blocked thread. */
+    private static HashMap<KThread,Wait> waits = new HashMap<KThread,Wait>();
+    /** Waits and blocked ticks per primitive and creation site. */
+    private static HashMap<String,long[]> sites = new HashMap<String,long[]>();
+    private static long deadlocks = 0;
+}
@@ -1,25 +1,48 @@
 package nachos.threads;
 
+import java.util.Collection;
 import java.util.LinkedList;
 import nachos.machine.*;
 import nachos.threads.*;
 
 /**
- * A synchronized queue.
+ * A synchronized queue. A queue may be given a capacity, in which case
+ * threads adding to a full queue wait until there is room.
+ *
+ * <p>
+ * Bursts of objects can be added with <tt>addAll()</tt> and taken with
+ * <tt>drainTo()</tt> in one critical section. Each wakes at most one waiting
+ * thread, which wakes the next one itself if there are objects or room left
+ * over.
  */
 public class SynchList {
     /**
-     * Allocate a new synchronized queue.
+     * Allocate a new synchronized queue with no limit on its size.
      */
     public SynchList() {
+	this(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Allocate a new synchronized queue that holds at most <i>capacity</i>
+     * objects.
+     *
+     * @param	capacity	the maximum number of objects in the queue.
+     */
+    public SynchList(int capacity) {
+	Lib.assertTrue(capacity > 0);
+
+	this.capacity = capacity;
 	list = new LinkedList<Object>();
 	lock = new Lock();
-	listEmpty = new Condition(lock);
+	listEmpty = new Condition2(lock);
+	listFull = new Condition2(lock);
     }
 
     /**
-     * Add the specified object to the end of the queue. If another thread is
-     * waiting in <tt>removeFirst()</tt>, it is woken up.
+     * Add the specified object to the end of the queue, waiting while the
+     * queue is full. If another thread is waiting in <tt>removeFirst()</tt>,
+     * it is woken up.
      *
      * @param	o	the object to add. Must not be <tt>null</tt>.
      */
@@ -27,8 +50,66 @@ public class SynchList {
 	Lib.assertTrue(o != null);
 	
 	lock.acquire();
+	while (list.size() == capacity)
+	    listFull.sleep();
 	list.add(o);
 	listEmpty.wake();
+	passOnRoom();
+	lock.release();
+    }
+
+    /**
+     * Add the specified object to the end of the queue if there is room,
+     * without waiting.
+     *
+     * @param	o	the object to add. Must not be <tt>null</tt>.
+     * @return	<tt>true</tt> if the object was added, or <tt>false</tt> if
+     *		the queue was full.
+     */
+    public boolean offer(Object o) {
+	Lib.assertTrue(o != null);
+
+	lock.acquire();
+	boolean added = list.size() < capacity;
+	if (added) {
+	    list.add(o);
+	    listEmpty.wake();
+	}
+	lock.release();
+
+	return added;
+    }
+
+    /**
+     * Add every object in <i>c</i> to the end of the queue, in order, waiting
+     * while the queue is full. The objects that fit are added together and
+     * wake one waiting thread.
+     *
+     * @param	c	the objects to add. None may be <tt>null</tt>.
+     */
+    public void addAll(Collection<?> c) {
+	lock.acquire();
+
+	int added = 0;
+	for (Object o : c) {
+	    Lib.assertTrue(o != null);
+
+	    if (list.size() == capacity) {
+		// 队列满：先唤醒一个消费者取走已加入的对象
+		if (added > 0)
+		    listEmpty.wake();
+		added = 0;
+		while (list.size() == capacity)
+		    listFull.sleep();
+	    }
+
+	    list.add(o);
+	    added++;
+	}
+
+	if (added > 0)
+	    listEmpty.wake();
+	passOnRoom();
 	lock.release();
     }
 
@@ -44,12 +125,105 @@ public class SynchList {
 	lock.acquire();
 	while (list.isEmpty())
 	    listEmpty.sleep();
-	o = list.removeFirst();
+	o = take();
+	lock.release();
+
+	return o;
+    }
+
+    /**
+     * Remove an object from the front of the queue if there is one, without
+     * waiting.
+     *
+     * @return	the element removed from the front of the queue, or
+     *		<tt>null</tt> if the queue was empty.
+     */
+    public Object poll() {
+	lock.acquire();
+	Object o = list.isEmpty() ? null : take();
+	lock.release();
+
+	return o;
+    }
+
+    /**
+     * Remove an object from the front of the queue, waiting at most
+     * <i>ticks</i> clock ticks for one to be added.
+     *
+     * @param	ticks	the maximum number of clock ticks to wait.
+     * @return	the element removed from the front of the queue, or
+     *		<tt>null</tt> if none arrived in time.
+     */
+    public Object poll(long ticks) {
+	long deadline = Machine.timer().getTime() + ticks;
+
+	lock.acquire();
+	while (list.isEmpty()) {
+	    // 被唤醒但对象被其他线程取走时，等待剩余的时间
+	    long remaining = deadline - Machine.timer().getTime();
+	    if (remaining <= 0 || !listEmpty.sleepFor(remaining))
+		break;
+	}
+	Object o = list.isEmpty() ? null : take();
+	lock.release();
+
+	return o;
+    }
+
+    /**
+     * Remove up to <i>max</i> objects from the front of the queue and add
+     * them to <i>c</i>, in order, without waiting.
+     *
+     * @param	c	the collection to add the objects to.
+     * @param	max	the maximum number of objects to remove.
+     * @return	the number of objects removed.
+     */
+    public int drainTo(Collection<Object> c, int max) {
+	lock.acquire();
+
+	int drained = 0;
+	while (drained < max && !list.isEmpty()) {
+	    c.add(list.removeFirst());
+	    drained++;
+	}
+
+	if (drained > 0)
+	    listFull.wake();
 	lock.release();
 
+	return drained;
+    }
+
+    /**
+     * Return the number of objects in the queue.
+     *
+     * @return	the number of objects in the queue.
+     */
+    public int size() {
+	return list.size();
+    }
+
+    /**
+     * Remove the first object, waking a thread waiting for room, and another
+     * thread waiting for an object if any are left.
+     */
+    private Object take() {
+	Object o = list.removeFirst();
+	listFull.wake();
+	if (!list.isEmpty())
+	    listEmpty.wake();
 	return o;
     }
 
+    /**
+     * A thread waiting for room may have been woken by a removal that this
+     * thread took the room from; wake another if there is room left over.
+     */
+    private void passOnRoom() {
+	if (list.size() < capacity)
+	    listFull.wake();
+    }
+
     private static class PingTest implements Runnable {
 	PingTest(SynchList ping, SynchList pong) {
 	    this.ping = ping;
@@ -79,10 +253,26 @@ public class SynchList {
 	    ping.add(o);
 	    Lib.assertTrue(pong.removeFirst() == o);
 	}
+
+	// 有界队列：批量加入和取出
+	SynchList bounded = new SynchList(4);
+	LinkedList<Object> burst = new LinkedList<Object>();
+	for (int i=0; i<4; i++)
+	    burst.add(new Integer(i));
+	bounded.addAll(burst);
+	Lib.assertTrue(!bounded.offer(new Integer(4)));
+	LinkedList<Object> drained = new LinkedList<Object>();
+	Lib.assertTrue(bounded.drainTo(drained, 3) == 3);
+	Lib.assertTrue(drained.getFirst() == burst.getFirst());
+	Lib.assertTrue(bounded.poll() == burst.getLast());
+	Lib.assertTrue(bounded.poll() == null);
+	Lib.assertTrue(bounded.poll(100) == null);
     }
 
+    private int capacity;
     private LinkedList<Object> list;
     private Lock lock;
-    private Condition listEmpty;
+    private Condition2 listEmpty;
+    private Condition2 listFull;
 }
 
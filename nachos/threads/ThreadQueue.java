@@ -1,5 +1,9 @@
 package nachos.threads;
 
+import nachos.machine.*;
+
+import java.util.Collection;
+
 /**
  * Schedules access to some sort of resource with limited access constraints. A
  * thread queue can be used to share this limited access among multiple
@@ -144,4 +148,39 @@ public abstract class ThreadQueue {
      */
     public abstract void print();
 
+    /**
+     * Notify this thread queue that each of <i>threads</i> is waiting for
+     * access, in order, as if by calling <tt>waitForAccess()</tt> on each.
+     * Queues that can file a batch of threads more cheaply than one at a
+     * time, such as ready queues that must update a tree or a donation per
+     * insertion, override this; the default just loops. Must be called with
+     * interrupts disabled.
+     *
+     * @param	threads	the threads waiting for access.
+     */
+    public void waitForAccessAll(Collection<KThread> threads) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	for (KThread thread : threads)
+	    waitForAccess(thread);
+    }
+
+    /**
+     * Remove the specified thread from this queue, if it is waiting for
+     * access, without giving it access. This is how a timed wait that runs out
+     * leaves the queue. Must be called with interrupts disabled.
+     *
+     * <p>
+     * Queues that cannot remove an arbitrary thread return <tt>false</tt>,
+     * which is the default.
+     *
+     * @param	thread	the thread to remove.
+     * @return	<tt>true</tt> if the thread was waiting on this queue and has
+     *		been removed.
+     */
+    public boolean remove(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	return false;
+    }
+
 }
@@ -41,17 +41,30 @@ public class ThreadedKernel extends Kernel {
 
     /**
      * Test this kernel. Test the <tt>KThread</tt>, <tt>Semaphore</tt>,
-     * <tt>SynchList</tt>, and <tt>ElevatorBank</tt> classes. Note that the
+     * <tt>SynchList</tt>, <tt>Barrier</tt>, and <tt>ElevatorBank</tt> classes. Note that the
      * autograder never calls this method, so it is safe to put additional
      * tests here.
      */	
     public void selfTest() {
 	KThread.selfTest();
 	Semaphore.selfTest();
+	PriorityScheduler.selfTest();
+	EDFScheduler.selfTest();
+	Alarm.selfTest();
 	SynchList.selfTest();
+	Barrier.selfTest();
+	ReadWriteLock.selfTest();
+	Channel.selfTest();
 	if (Machine.bank() != null) {
 	    ElevatorBank.selfTest();
 	}
+	if (Config.getBoolean("ThreadedKernel.benchmark", false)) {
+	    LotteryScheduler.benchmark(10000, 100000);
+	    MLFQScheduler.mixedWorkloadTest(4, 4, 200000);
+	    ReadWriteLock.benchmark(8, 20, 90);
+	    Channel.benchmark(10000, 64);
+	    Alarm.benchmark(16, 20, 2000);
+	}
     }
     
     /**
@@ -83,4 +96,9 @@ public class ThreadedKernel extends Kernel {
     private static Communicator dummy5 = null;
     private static Rider dummy6 = null;
     private static ElevatorController dummy7 = null;
+    private static StrideScheduler dummy8 = null;
+    private static MLFQScheduler dummy9 = null;
+    private static CFSScheduler dummy10 = null;
+    private static EDFScheduler dummy11 = null;
+    private static WorkStealingScheduler dummy12 = null;
 }
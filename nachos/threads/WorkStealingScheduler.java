@@ -0,0 +1,242 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A round-robin scheduler whose ready queue is split into one run queue per
+ * processor, with idle processors stealing work from busy ones.
+ *
+ * <p>
+ * A ready thread is queued on the processor given by its affinity hint
+ * (<tt>KThread.setAffinity()</tt>), or else on the processor it last ran on,
+ * which keeps its cache warm and means processors rarely touch each other's
+ * queues. A thread that has never run goes to the shortest queue. When a
+ * processor's own queue is empty, it steals half of the longest queue,
+ * taking threads that are not pinned to that processor from the tail.
+ *
+ * <p>
+ * The number of processors is read from <tt>WorkStealingScheduler.cpus</tt> in
+ * <tt>nachos.conf</tt>. The simulated machine has only one processor, so the
+ * processors take turns making scheduling decisions, each taking its next
+ * thread from its own queue. If it has no work and nothing can be stolen, the
+ * next processor with work runs instead, so pinned threads are never
+ * starved.
+ *
+ * <p>
+ * All other queues are the FIFO queues of the round-robin scheduler.
+ */
+public class WorkStealingScheduler extends RoundRobinScheduler {
+    /**
+     * Allocate a new work-stealing scheduler.
+     */
+    public WorkStealingScheduler() {
+	numCPUs = Config.getInteger("WorkStealingScheduler.cpus", 4);
+
+	Lib.assertTrue(numCPUs > 0);
+    }
+
+    /**
+     * Allocate a new set of per-processor run queues.
+     *
+     * @return	a new ready queue.
+     */
+    public ThreadQueue newReadyQueue() {
+	return new RunQueues();
+    }
+
+    /**
+     * Return the number of threads moved by stealing so far.
+     *
+     * @return	the number of stolen threads.
+     */
+    public long getSteals() {
+	return steals;
+    }
+
+    /**
+     * Return the load imbalance, averaged over every scheduling decision: the
+     * length of the longest run queue less the mean length, divided by the
+     * mean length. A perfectly balanced machine has an imbalance of 0, and a
+     * machine with all its work on one processor an imbalance of
+     * <tt>cpus</tt> - 1.
+     *
+     * @return	the mean load imbalance.
+     */
+    public double getLoadImbalance() {
+	return imbalanceSamples == 0 ? 0 : imbalanceTotal / imbalanceSamples;
+    }
+
+    /**
+     * Return the processor the specified thread last ran on. Must be called
+     * with interrupts disabled.
+     *
+     * @param	thread	the thread.
+     * @return	the processor number, or -1 if the thread has not run yet.
+     */
+    public int getLastCPU(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).cpu;
+    }
+
+    private ThreadState getThreadState(KThread thread) {
+	if (!(thread.schedulingState instanceof ThreadState))
+	    thread.schedulingState = new ThreadState();
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /** The processor a thread last ran on. */
+    private static class ThreadState {
+	int cpu = -1;
+    }
+
+    private class RunQueues extends ThreadQueue {
+	RunQueues() {
+	    queues = new ArrayList<ArrayDeque<KThread>>(numCPUs);
+	    for (int i=0; i<numCPUs; i++)
+		queues.add(new ArrayDeque<KThread>());
+	}
+
+	/**
+	 * Add a thread to the end of the run queue of its preferred
+	 * processor.
+	 *
+	 * @param	thread	the thread to append to the queue.
+	 */
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    int cpu = thread.getAffinity() % numCPUs;
+	    if (cpu < 0)
+		cpu = getThreadState(thread).cpu;
+	    if (cpu < 0)
+		cpu = shortestQueue();
+
+	    queues.get(cpu).add(thread);
+	    size++;
+	}
+
+	/**
+	 * Let the next processor take a thread from its own run queue,
+	 * stealing if it has none.
+	 *
+	 * @return	the next thread, or <tt>null</tt> if every queue is
+	 *		empty.
+	 */
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (size == 0)
+		return null;
+
+	    sampleImbalance();
+
+	    for (int i=0; i<numCPUs; i++) {
+		int cpu = turn;
+		turn = (turn + 1) % numCPUs;
+
+		if (queues.get(cpu).isEmpty())
+		    steal(cpu);
+		if (!queues.get(cpu).isEmpty()) {
+		    KThread thread = queues.get(cpu).removeFirst();
+		    size--;
+		    getThreadState(thread).cpu = cpu;
+		    return thread;
+		}
+	    }
+
+	    Lib.assertNotReached();
+	    return null;
+	}
+
+	/**
+	 * The specified thread has received exclusive access, without using
+	 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Assert that no
+	 * threads are waiting for access.
+	 */
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    Lib.assertTrue(size == 0);
+	}
+
+	/**
+	 * Print out the contents of the queue.
+	 */
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<numCPUs; i++) {
+		for (Iterator<KThread> j=queues.get(i).iterator(); j.hasNext(); )
+		    System.out.print(j.next() + " (cpu " + i + ") ");
+	    }
+	}
+
+	/**
+	 * Move half of the longest run queue to processor <i>cpu</i>, leaving
+	 * threads pinned to the victim where they are.
+	 */
+	private void steal(int cpu) {
+	    int victim = longestQueue();
+	    if (victim == cpu || queues.get(victim).size() < 2)
+		return;
+
+	    int wanted = queues.get(victim).size() / 2;
+	    for (Iterator<KThread> i=queues.get(victim).descendingIterator();
+		 i.hasNext() && wanted > 0; ) {
+		KThread thread = i.next();
+		if (thread.getAffinity() >= 0
+		    && thread.getAffinity() % numCPUs == victim)
+		    continue;
+
+		i.remove();
+		queues.get(cpu).addFirst(thread);
+		wanted--;
+		steals++;
+	    }
+	}
+
+	private int shortestQueue() {
+	    int shortest = 0;
+	    for (int i=1; i<numCPUs; i++) {
+		if (queues.get(i).size() < queues.get(shortest).size())
+		    shortest = i;
+	    }
+	    return shortest;
+	}
+
+	private int longestQueue() {
+	    int longest = 0;
+	    for (int i=1; i<numCPUs; i++) {
+		if (queues.get(i).size() > queues.get(longest).size())
+		    longest = i;
+	    }
+	    return longest;
+	}
+
+	private void sampleImbalance() {
+	    double mean = (double) size / numCPUs;
+	    imbalanceTotal += (queues.get(longestQueue()).size() - mean) / mean;
+	    imbalanceSamples++;
+	}
+
+	/** One run queue per processor. */
+	private List<ArrayDeque<KThread>> queues;
+	/** The total number of threads in all run queues. */
+	private int size = 0;
+	/** The processor that makes the next scheduling decision. */
+	private int turn = 0;
+    }
+
+    private int numCPUs;
+
+    private long steals = 0;
+    private double imbalanceTotal = 0;
+    private long imbalanceSamples = 0;
+}
@@ -0,0 +1,380 @@
+package nachos.threads.bench;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.tools.BatchRunner;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A kernel that runs a synthetic workload and reports how well the scheduler
+ * handled it, and a driver that runs the workload under every scheduler.
+ *
+ * <p>
+ * The workload has <tt>SchedulerBench.threads</tt> threads, each of which
+ * repeats <tt>SchedulerBench.iterations</tt> times:
+ *
+ * <ul>
+ * <li>a CPU burst of busy work, where each unit of work advances the clock
+ * by one kernel tick. Thread <i>i</i> does
+ * <tt>SchedulerBench.burst</tt> &times; (1 + <i>i</i> mod 3) units, so
+ * there is a mix of short and long jobs;
+ * <li><tt>SchedulerBench.lockHold</tt> units of work holding a
+ * <tt>Lock</tt> shared by all threads;
+ * <li>a sleep of <tt>SchedulerBench.sleep</tt> ticks in
+ * <tt>Alarm.waitUntil()</tt>.
+ * </ul>
+ *
+ * <p>
+ * When every thread has finished, one line is printed with the throughput
+ * (iterations per thousand ticks), the mean turnaround (ticks from fork to
+ * finish), the mean waiting time (turnaround less the thread's own work and
+ * requested sleep), Jain's fairness index over the rate at which each thread
+ * got through its work, and the host time per scheduling decision. For the
+ * last figure <tt>ThreadedKernel.scheduler</tt> must be a
+ * <tt>TimedScheduler</tt>.
+ *
+ * <p>
+ * Since a scheduler is global to a Nachos machine, the driver runs one
+ * machine per scheduler with <tt>BatchRunner</tt> and collects the lines into
+ * a table:
+ *
+ * <p><blockquote><pre>
+ * java nachos.threads.bench.SchedulerBench [-j jobs] [-c workload.conf]
+ *					    [scheduler ...]
+ * </pre></blockquote>
+ *
+ * <p>
+ * Lines in the optional configuration file, e.g.
+ * <tt>SchedulerBench.threads = 16</tt>, are added to the configuration of
+ * every machine. With no schedulers named, every scheduler in
+ * <tt>nachos.threads</tt> is run.
+ */
+public class SchedulerBench extends ThreadedKernel {
+    /**
+     * Allocate a new benchmark kernel.
+     */
+    public SchedulerBench() {
+	super();
+    }
+
+    /**
+     * The benchmark does not run the usual self tests, so that they do not
+     * disturb the measurements.
+     */
+    public void selfTest() {
+    }
+
+    /**
+     * Run the workload and print the results.
+     */
+    public void run() {
+	numThreads = Config.getInteger("SchedulerBench.threads", 8);
+	iterations = Config.getInteger("SchedulerBench.iterations", 10);
+	burst = Config.getInteger("SchedulerBench.burst", 50);
+	lockHold = Config.getInteger("SchedulerBench.lockHold", 5);
+	sleepTicks = Config.getInteger("SchedulerBench.sleep", 500);
+
+	Lib.assertTrue(numThreads > 0 && iterations > 0);
+	Lib.assertTrue(burst >= 0 && lockHold >= 0 && sleepTicks >= 0);
+
+	lock = new Lock();
+	finishTimes = new long[numThreads];
+
+	long startTime = Machine.timer().getTime();
+	KThread[] threads = new KThread[numThreads];
+	for (int i=0; i<numThreads; i++) {
+	    final int id = i;
+	    threads[i] = new KThread(new Runnable() {
+		    public void run() { runThread(id); }
+		}).setName("bench" + i);
+	}
+
+	for (int i=0; i<numThreads; i++)
+	    threads[i].fork();
+	for (int i=0; i<numThreads; i++)
+	    threads[i].join();
+
+	report(startTime);
+    }
+
+    /**
+     * The body of benchmark thread <i>id</i>.
+     */
+    private void runThread(int id) {
+	for (int i=0; i<iterations; i++) {
+	    work(burstOf(id));
+
+	    lock.acquire();
+	    work(lockHold);
+	    lock.release();
+
+	    if (sleepTicks > 0)
+		ThreadedKernel.alarm.waitUntil(sleepTicks);
+	}
+
+	finishTimes[id] = Machine.timer().getTime();
+    }
+
+    private int burstOf(int id) {
+	return burst * (1 + id % 3);
+    }
+
+    /**
+     * Do <i>units</i> units of busy work. Each unit enables interrupts once,
+     * which advances the clock by one kernel tick and lets the timer preempt
+     * the thread.
+     */
+    private static void work(int units) {
+	for (int i=0; i<units; i++)
+	    Machine.interrupt().restore(Machine.interrupt().disable());
+    }
+
+    private void report(long startTime) {
+	long elapsed = 0;
+	long totalTurnaround = 0;
+	long totalWaiting = 0;
+	double sumRate = 0, sumRateSquared = 0;
+
+	for (int i=0; i<numThreads; i++) {
+	    long turnaround = finishTimes[i] - startTime;
+	    long busy = (long) iterations * (burstOf(i) + lockHold)
+		* Stats.KernelTick;
+	    long waiting = turnaround - busy - (long) iterations * sleepTicks;
+
+	    elapsed = Math.max(elapsed, turnaround);
+	    totalTurnaround += turnaround;
+	    totalWaiting += Math.max(waiting, 0);
+
+	    // 每个线程完成自身工作的速率
+	    double rate = (double) busy / Math.max(turnaround, 1);
+	    sumRate += rate;
+	    sumRateSquared += rate * rate;
+	}
+
+	String schedulerName = scheduler.getClass().getName();
+	long decisions = -1, nanosPerDecision = -1;
+	if (scheduler instanceof TimedScheduler) {
+	    TimedScheduler timed = (TimedScheduler) scheduler;
+	    schedulerName = timed.getScheduler().getClass().getName();
+	    decisions = timed.getDecisions();
+	    nanosPerDecision = timed.getQueueNanos() / Math.max(decisions, 1);
+	}
+
+	System.out.println(resultPrefix
+			   + "scheduler=" + schedulerName
+			   + " throughput=" + String.format("%.3f",
+			       (double) numThreads * iterations * 1000
+			       / Math.max(elapsed, 1))
+			   + " turnaround=" + totalTurnaround / numThreads
+			   + " waiting=" + totalWaiting / numThreads
+			   + " fairness=" + String.format("%.4f",
+			       sumRate * sumRate / (numThreads * sumRateSquared))
+			   + " decisions=" + decisions
+			   + " nsPerDecision=" + nanosPerDecision
+			   + " lockContended=" + lock.getContendedAcquires()
+			   + "/" + lock.getAcquires()
+			   + " lockWait=" + lock.getWaitTime()
+			   + loadBalance());
+    }
+
+    /**
+     * Describe how evenly a per-processor scheduler spread the work, or
+     * return an empty string for other schedulers.
+     */
+    private String loadBalance() {
+	Scheduler measured = scheduler;
+	if (measured instanceof TimedScheduler)
+	    measured = ((TimedScheduler) measured).getScheduler();
+	if (!(measured instanceof WorkStealingScheduler))
+	    return "";
+
+	WorkStealingScheduler stealing = (WorkStealingScheduler) measured;
+	return " imbalance=" + String.format("%.3f", stealing.getLoadImbalance())
+	    + " steals=" + stealing.getSteals();
+    }
+
+    /**
+     * Benchmark driver entry point.
+     *
+     * @param	args	the command line arguments.
+     */
+    public static void main(String[] args) {
+	int parallelism = Runtime.getRuntime().availableProcessors();
+	String workloadName = null;
+	List<String> schedulers = new ArrayList<String>();
+
+	for (int i=0; i<args.length; ) {
+	    String arg = args[i++];
+	    if (arg.equals("-j") && i < args.length) {
+		try {
+		    parallelism = Integer.parseInt(args[i++]);
+		}
+		catch (NumberFormatException e) {
+		    usage();
+		}
+	    }
+	    else if (arg.equals("-c") && i < args.length)
+		workloadName = args[i++];
+	    else if (arg.startsWith("-"))
+		usage();
+	    else
+		schedulers.add(arg.indexOf('.') < 0 ? "nachos.threads." + arg
+			       : arg);
+	}
+
+	if (parallelism < 1)
+	    usage();
+	if (schedulers.isEmpty()) {
+	    for (String name : allSchedulers)
+		schedulers.add("nachos.threads." + name);
+	}
+
+	List<BatchRunner.Job> jobs = new ArrayList<BatchRunner.Job>();
+	List<File> configs = new ArrayList<File>();
+	try {
+	    for (String schedulerName : schedulers) {
+		File config = writeConfig(schedulerName, workloadName);
+		configs.add(config);
+
+		BatchRunner.Job job = new BatchRunner.Job(schedulerName);
+		job.switches.addAll(Arrays.asList("-[]", config.getPath()));
+		jobs.add(job);
+	    }
+
+	    new BatchRunner(parallelism, 0).run(jobs);
+	}
+	catch (IOException e) {
+	    System.err.println("cannot write configuration: " + e.getMessage());
+	    System.exit(1);
+	}
+	finally {
+	    for (File config : configs)
+		config.delete();
+	}
+
+	System.out.println(String.format("%-36s %10s %10s %10s %8s %10s %8s",
+					 "scheduler", "iter/kTick", "turnaround",
+					 "waiting", "fairness", "decisions",
+					 "ns/dec"));
+
+	boolean failed = false;
+	for (BatchRunner.Job job : jobs) {
+	    Map<String,String> result = parseResult(job.output);
+	    if (!job.succeeded() || result == null) {
+		System.out.println(String.format("%-36s %s", job.name,
+						 "failed: "
+						 + job.describeStatus()));
+		failed = true;
+		continue;
+	    }
+
+	    System.out.println(String.format("%-36s %10s %10s %10s %8s %10s %8s",
+					     job.name,
+					     result.get("throughput"),
+					     result.get("turnaround"),
+					     result.get("waiting"),
+					     result.get("fairness"),
+					     result.get("decisions"),
+					     result.get("nsPerDecision")));
+	}
+
+	if (failed)
+	    System.exit(2);
+    }
+
+    /**
+     * Write a temporary configuration file that runs this benchmark under
+     * the named scheduler.
+     */
+    private static File writeConfig(String schedulerName, String workloadName)
+	throws IOException {
+	File config = File.createTempFile("bench", ".conf");
+	PrintWriter writer = new PrintWriter(new FileWriter(config));
+
+	try {
+	    writer.println("Machine.stubFileSystem = false");
+	    writer.println("Machine.processor = false");
+	    writer.println("Machine.console = false");
+	    writer.println("Machine.disk = false");
+	    writer.println("Machine.bank = false");
+	    writer.println("Machine.networkLink = false");
+	    writer.println("NachosSecurityManager.fullySecure = false");
+	    writer.println("Kernel.kernel = " + SchedulerBench.class.getName());
+	    writer.println("ThreadedKernel.scheduler = "
+			   + TimedScheduler.class.getName());
+	    writer.println("TimedScheduler.scheduler = " + schedulerName);
+
+	    if (workloadName != null) {
+		BufferedReader reader =
+		    new BufferedReader(new FileReader(workloadName));
+		try {
+		    String line;
+		    while ((line = reader.readLine()) != null)
+			writer.println(line);
+		}
+		finally {
+		    reader.close();
+		}
+	    }
+	}
+	finally {
+	    writer.close();
+	}
+
+	return config;
+    }
+
+    /**
+     * Find the result line in a machine's output and split it into keys and
+     * values.
+     */
+    private static Map<String,String> parseResult(String output) {
+	for (String line : output.split("\n")) {
+	    if (!line.startsWith(resultPrefix))
+		continue;
+
+	    Map<String,String> result = new LinkedHashMap<String,String>();
+	    for (String field : line.substring(resultPrefix.length())
+		     .split(" ")) {
+		int equals = field.indexOf('=');
+		if (equals > 0)
+		    result.put(field.substring(0, equals),
+			       field.substring(equals+1));
+	    }
+	    return result;
+	}
+
+	return null;
+    }
+
+    private static void usage() {
+	System.err.println("usage: java nachos.threads.bench.SchedulerBench "
+			   + "[-j jobs] [-c workload.conf] [scheduler ...]");
+	System.exit(1);
+    }
+
+    private static final String resultPrefix = "SchedulerBench: ";
+
+    /** The schedulers run when none are named on the command line. */
+    private static final String[] allSchedulers = {
+	"RoundRobinScheduler", "PriorityScheduler", "LotteryScheduler",
+	"StrideScheduler", "MLFQScheduler", "CFSScheduler", "EDFScheduler",
+	"WorkStealingScheduler"
+    };
+
+    private int numThreads, iterations;
+    private int burst, lockHold, sleepTicks;
+    private Lock lock;
+    private long[] finishTimes;
+}
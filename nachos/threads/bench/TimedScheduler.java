@@ -0,0 +1,150 @@
+package nachos.threads.bench;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.Collection;
+
+/**
+ * A scheduler that measures the host time spent in another scheduler. Every
+ * thread queue operation is passed on to a queue of the scheduler named by
+ * <tt>TimedScheduler.scheduler</tt> in <tt>nachos.conf</tt>, and the host time
+ * it takes is added up, so the cost of a scheduling decision can be compared
+ * between schedulers running the same workload.
+ */
+public class TimedScheduler extends Scheduler {
+    /**
+     * Allocate a new timed scheduler, and the scheduler it measures.
+     */
+    public TimedScheduler() {
+	String schedulerName = Config.getString("TimedScheduler.scheduler");
+	scheduler = (Scheduler) Lib.constructObject(schedulerName);
+    }
+
+    /**
+     * Return the scheduler being measured.
+     *
+     * @return	the scheduler every operation is passed on to.
+     */
+    public Scheduler getScheduler() {
+	return scheduler;
+    }
+
+    /**
+     * Return the number of scheduling decisions made so far, that is, the
+     * number of calls to <tt>nextThread()</tt> on any queue.
+     *
+     * @return	the number of decisions.
+     */
+    public long getDecisions() {
+	return decisions;
+    }
+
+    /**
+     * Return the total host time spent in <tt>waitForAccess()</tt>,
+     * <tt>nextThread()</tt> and <tt>acquire()</tt> on any queue.
+     *
+     * @return	the host time in nanoseconds.
+     */
+    public long getQueueNanos() {
+	return queueNanos;
+    }
+
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new TimedQueue(scheduler.newThreadQueue(transferPriority));
+    }
+
+    public ThreadQueue newReadyQueue() {
+	return new TimedQueue(scheduler.newReadyQueue());
+    }
+
+    public boolean timeSliceExpired() {
+	return scheduler.timeSliceExpired();
+    }
+
+    public int getPriority(KThread thread) {
+	return scheduler.getPriority(thread);
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	return scheduler.getEffectivePriority(thread);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	scheduler.setPriority(thread, priority);
+    }
+
+    public void beginTransfer(KThread from, KThread to) {
+	scheduler.beginTransfer(from, to);
+    }
+
+    public void endTransfer(KThread from) {
+	scheduler.endTransfer(from);
+    }
+
+    public boolean setRealTime(KThread thread, long period, long budget) {
+	return scheduler.setRealTime(thread, period, budget);
+    }
+
+    public void threadFinished(KThread thread) {
+	scheduler.threadFinished(thread);
+    }
+
+    public boolean increasePriority() {
+	return scheduler.increasePriority();
+    }
+
+    public boolean decreasePriority() {
+	return scheduler.decreasePriority();
+    }
+
+    private class TimedQueue extends ThreadQueue {
+	TimedQueue(ThreadQueue queue) {
+	    this.queue = queue;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    long startTime = System.nanoTime();
+	    queue.waitForAccess(thread);
+	    queueNanos += System.nanoTime() - startTime;
+	}
+
+	public void waitForAccessAll(Collection<KThread> threads) {
+	    long startTime = System.nanoTime();
+	    queue.waitForAccessAll(threads);
+	    queueNanos += System.nanoTime() - startTime;
+	}
+
+	public KThread nextThread() {
+	    long startTime = System.nanoTime();
+	    KThread thread = queue.nextThread();
+	    queueNanos += System.nanoTime() - startTime;
+
+	    decisions++;
+	    return thread;
+	}
+
+	public void acquire(KThread thread) {
+	    long startTime = System.nanoTime();
+	    queue.acquire(thread);
+	    queueNanos += System.nanoTime() - startTime;
+	}
+
+	public boolean remove(KThread thread) {
+	    long startTime = System.nanoTime();
+	    boolean removed = queue.remove(thread);
+	    queueNanos += System.nanoTime() - startTime;
+	    return removed;
+	}
+
+	public void print() {
+	    queue.print();
+	}
+
+	private ThreadQueue queue;
+    }
+
+    private Scheduler scheduler;
+    private long decisions = 0;
+    private long queueNanos = 0;
+}
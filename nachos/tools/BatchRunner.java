@@ -0,0 +1,434 @@
+package nachos.tools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a batch of Nachos machines in parallel and collects their results into
+ * a single report.
+ *
+ * <p>
+ * Every machine is a separate JVM, because the simulated hardware
+ * (<tt>Machine</tt>, <tt>TCB</tt>, the security manager) is global to the
+ * JVM it runs in. The manifest has one job per line; each line holds the
+ * switches that would otherwise be given to <tt>nachos.machine.Machine</tt>,
+ * e.g.
+ *
+ * <p><blockquote><pre>
+ * # name	switches
+ * sort		-x sort.coff -m 32
+ * matmult-1	-x matmult.coff -s 1 -[] proj2/nachos.conf
+ * </pre></blockquote>
+ *
+ * <p>
+ * The first word of a line is the job name. Empty lines and lines starting
+ * with <tt>#</tt> are ignored. Only the switches understood by
+ * <tt>Machine.processArgs()</tt> are accepted.
+ *
+ * <p>
+ * Usage:
+ *
+ * <p><blockquote><pre>
+ * java nachos.tools.BatchRunner [-j jobs] [-t seconds] [-o report]
+ *				 [-v] manifest
+ * </pre></blockquote>
+ */
+public class BatchRunner {
+    /**
+     * Batch runner entry point.
+     *
+     * @param	args	the command line arguments.
+     */
+    public static void main(String[] args) {
+	int parallelism = Runtime.getRuntime().availableProcessors();
+	long timeout = 0;
+	String reportName = null;
+	String manifestName = null;
+	boolean verbose = false;
+
+	for (int i=0; i<args.length; ) {
+	    String arg = args[i++];
+	    if (arg.equals("-j") && i < args.length)
+		parallelism = parseInt(args[i++], "-j");
+	    else if (arg.equals("-t") && i < args.length)
+		timeout = parseInt(args[i++], "-t");
+	    else if (arg.equals("-o") && i < args.length)
+		reportName = args[i++];
+	    else if (arg.equals("-v"))
+		verbose = true;
+	    else if (arg.startsWith("-") || manifestName != null)
+		usage();
+	    else
+		manifestName = arg;
+	}
+
+	if (manifestName == null || parallelism < 1)
+	    usage();
+
+	List<Job> jobs;
+	try {
+	    jobs = readManifest(manifestName);
+	}
+	catch (IOException e) {
+	    System.err.println("cannot read manifest: " + e.getMessage());
+	    System.exit(1);
+	    return;
+	}
+
+	BatchRunner runner = new BatchRunner(parallelism, timeout);
+	long startTime = System.currentTimeMillis();
+	runner.run(jobs);
+	long elapsed = System.currentTimeMillis() - startTime;
+
+	PrintStream out = System.out;
+	try {
+	    if (reportName != null)
+		out = new PrintStream(new FileOutputStream(reportName));
+	}
+	catch (IOException e) {
+	    System.err.println("cannot write report: " + e.getMessage());
+	    System.exit(1);
+	}
+
+	printReport(out, jobs, elapsed, verbose);
+	out.flush();
+
+	for (Job job : jobs) {
+	    if (!job.succeeded())
+		System.exit(2);
+	}
+    }
+
+    /**
+     * Allocate a new batch runner.
+     *
+     * @param	parallelism	the number of machines to run at once.
+     * @param	timeout		the number of seconds after which a machine is
+     *				killed, or 0 to wait forever.
+     */
+    public BatchRunner(int parallelism, long timeout) {
+	this.parallelism = parallelism;
+	this.timeout = timeout;
+    }
+
+    /**
+     * Run every job in the list, filling in its results. Returns once all
+     * jobs have finished.
+     *
+     * @param	jobs	the jobs to run.
+     */
+    public void run(List<Job> jobs) {
+	ExecutorService pool = Executors.newFixedThreadPool(parallelism);
+	List<Future<?>> futures = new ArrayList<Future<?>>();
+
+	for (final Job job : jobs) {
+	    futures.add(pool.submit(new Runnable() {
+		    public void run() { runJob(job); }
+		}));
+	}
+
+	for (Future<?> future : futures) {
+	    try {
+		future.get();
+	    }
+	    catch (Exception e) {
+		// runJob() records its own failures
+	    }
+	}
+
+	pool.shutdown();
+    }
+
+    private void runJob(Job job) {
+	List<String> command = new ArrayList<String>();
+	command.add(new File(new File(System.getProperty("java.home"), "bin"),
+			     "java").getPath());
+	command.add("-cp");
+	command.add(System.getProperty("java.class.path"));
+	command.add("nachos.machine.Machine");
+	command.addAll(job.switches);
+
+	ProcessBuilder builder = new ProcessBuilder(command);
+	builder.redirectErrorStream(true);
+
+	long startTime = System.currentTimeMillis();
+	try {
+	    final Process process = builder.start();
+	    process.getOutputStream().close();
+
+	    final StringBuilder output = new StringBuilder();
+	    Thread reader = new Thread(new Runnable() {
+		    public void run() { drain(process.getInputStream(), output); }
+		});
+	    reader.start();
+
+	    if (timeout > 0) {
+		if (!process.waitFor(timeout, TimeUnit.SECONDS)) {
+		    process.destroyForcibly();
+		    job.timedOut = true;
+		}
+	    }
+	    process.waitFor();
+	    reader.join();
+
+	    job.exitStatus = process.exitValue();
+	    job.output = output.toString();
+	    job.parseOutput();
+	}
+	catch (IOException e) {
+	    job.output = "cannot start machine: " + e.getMessage();
+	}
+	catch (InterruptedException e) {
+	    job.output = "interrupted";
+	}
+
+	job.hostMillis = System.currentTimeMillis() - startTime;
+    }
+
+    private static void drain(InputStream in, StringBuilder output) {
+	try {
+	    BufferedReader reader =
+		new BufferedReader(new InputStreamReader(in));
+	    String line;
+	    while ((line = reader.readLine()) != null)
+		output.append(line).append('\n');
+	}
+	catch (IOException e) {
+	}
+    }
+
+    /**
+     * Read a manifest file, returning one job per non-empty line.
+     *
+     * @param	fileName	the name of the manifest.
+     * @return	the jobs listed in the manifest.
+     */
+    public static List<Job> readManifest(String fileName) throws IOException {
+	List<Job> jobs = new ArrayList<Job>();
+	BufferedReader reader = new BufferedReader(new FileReader(fileName));
+
+	try {
+	    String line;
+	    int lineNumber = 0;
+	    while ((line = reader.readLine()) != null) {
+		lineNumber++;
+		line = line.trim();
+		if (line.length() == 0 || line.startsWith("#"))
+		    continue;
+
+		String[] words = line.split("\\s+");
+		Job job = new Job(words[0]);
+		for (int i=1; i<words.length; i++)
+		    job.switches.add(words[i]);
+
+		String error = checkSwitches(job.switches);
+		if (error != null)
+		    throw new IOException(fileName + ":" + lineNumber + ": "
+					  + error);
+
+		jobs.add(job);
+	    }
+	}
+	finally {
+	    reader.close();
+	}
+
+	return jobs;
+    }
+
+    /**
+     * Check a list of switches against those accepted by
+     * <tt>Machine.processArgs()</tt>.
+     *
+     * @param	switches	the switches to check.
+     * @return	an error message, or <tt>null</tt> if the switches are valid.
+     */
+    private static String checkSwitches(List<String> switches) {
+	for (int i=0; i<switches.size(); ) {
+	    String arg = switches.get(i++);
+	    if (!arg.equals("-d") && !arg.equals("-m") && !arg.equals("-s") &&
+		!arg.equals("-x") && !arg.equals("-[]") && !arg.equals("--"))
+		return "unknown switch " + arg;
+	    if (i == switches.size())
+		return "switch without argument " + arg;
+
+	    String value = switches.get(i++);
+	    if (arg.equals("-m") || arg.equals("-s")) {
+		try {
+		    // parsed as Machine.processArgs() parses them
+		    if (arg.equals("-m"))
+			Integer.parseInt(value);
+		    else
+			Long.parseLong(value);
+		}
+		catch (NumberFormatException e) {
+		    return "bad value for " + arg + " switch";
+		}
+	    }
+	}
+
+	return null;
+    }
+
+    private static void printReport(PrintStream out, List<Job> jobs,
+				    long elapsed, boolean verbose) {
+	int succeeded = 0;
+	long totalTicks = 0;
+
+	for (Job job : jobs) {
+	    out.println(job.name + ": " + job.describeStatus()
+			+ " (" + job.hostMillis + " ms)");
+	    for (Map.Entry<String,String> stat : job.stats.entrySet())
+		out.println("\t" + stat.getKey() + ": " + stat.getValue());
+
+	    if (verbose || !job.succeeded()) {
+		for (String line : job.output.split("\n"))
+		    out.println("\t| " + line);
+	    }
+
+	    if (job.succeeded())
+		succeeded++;
+	    if (job.totalTicks > 0)
+		totalTicks += job.totalTicks;
+	}
+
+	out.println("");
+	out.println(jobs.size() + " jobs, " + succeeded + " halted normally, "
+		    + (jobs.size() - succeeded) + " failed");
+	out.println("simulated ticks: total " + totalTicks
+		    + ", host time " + elapsed + " ms");
+    }
+
+    private static int parseInt(String value, String name) {
+	try {
+	    return Integer.parseInt(value);
+	}
+	catch (NumberFormatException e) {
+	    System.err.println("bad value for " + name + " switch");
+	    System.exit(1);
+	    return 0;
+	}
+    }
+
+    private static void usage() {
+	System.err.println("usage: java nachos.tools.BatchRunner [-j jobs] "
+			   + "[-t seconds] [-o report] [-v] manifest");
+	System.exit(1);
+    }
+
+    /**
+     * A single machine run from the manifest, and the results it produced.
+     */
+    public static class Job {
+	/**
+	 * Allocate a new job.
+	 *
+	 * @param	name	the name of the job, used in the report.
+	 */
+	public Job(String name) {
+	    this.name = name;
+	}
+
+	/**
+	 * Return <tt>true</tt> if the machine halted by itself and exited
+	 * normally.
+	 *
+	 * @return	<tt>true</tt> if the job succeeded.
+	 */
+	public boolean succeeded() {
+	    return !timedOut && exitStatus == 0 && halted;
+	}
+
+	/**
+	 * Return a short description of how the job ended.
+	 *
+	 * @return	a description such as <tt>halted</tt> or
+	 *		<tt>timed out</tt>.
+	 */
+	public String describeStatus() {
+	    if (timedOut)
+		return "timed out";
+	    else if (exitStatus != 0)
+		return "exit status " + exitStatus;
+	    else if (!halted)
+		return "did not halt";
+	    else
+		return "halted";
+	}
+
+	/**
+	 * Pick the statistics printed by <tt>Stats.print()</tt> out of the
+	 * machine's console output.
+	 */
+	void parseOutput() {
+	    // Machine.halt() prints no newline first, so the message may
+	    // follow program output on the same line
+	    int marker = output.indexOf("Machine halting!");
+	    if (marker < 0)
+		return;
+	    halted = true;
+
+	    for (String line : output.substring(marker).split("\n")) {
+		int colon = line.indexOf(": ");
+		if (colon < 0)
+		    continue;
+
+		String key = line.substring(0, colon);
+		if (key.equals("Ticks") || key.equals("Disk I/O") ||
+		    key.equals("Console I/O") || key.equals("Paging") ||
+		    key.equals("Network I/O")) {
+		    String value = line.substring(colon+2);
+		    stats.put(key, value);
+
+		    if (key.equals("Ticks") && value.startsWith("total ")) {
+			int comma = value.indexOf(',');
+			try {
+			    totalTicks = Long.parseLong(
+				value.substring(6, comma < 0 ? value.length()
+						: comma));
+			}
+			catch (NumberFormatException e) {
+			}
+		    }
+		}
+	    }
+	}
+
+	/** The name of this job. */
+	public final String name;
+	/** The switches passed to <tt>nachos.machine.Machine</tt>. */
+	public final List<String> switches = new ArrayList<String>();
+	/** The machine's console output, including stderr. */
+	public String output = "";
+	/** The statistics the machine printed when it halted. */
+	public final Map<String,String> stats =
+	    new LinkedHashMap<String,String>();
+	/** The total simulated ticks, or -1 if the machine did not halt. */
+	public long totalTicks = -1;
+	/** The JVM exit status. */
+	public int exitStatus = -1;
+	/** Whether the machine printed its halt message. */
+	public boolean halted = false;
+	/** Whether the machine was killed after the timeout expired. */
+	public boolean timedOut = false;
+	/** The host time taken by this job, in milliseconds. */
+	public long hostMillis = 0;
+    }
+
+    private int parallelism;
+    private long timeout;
+}
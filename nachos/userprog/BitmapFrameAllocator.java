@@ -0,0 +1,129 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+/**
+ * A frame allocator that keeps one bit per frame. A second, summary bitmap
+ * has one bit per word of the first, set when that word has a free frame, so
+ * a free frame is found by looking at one summary word per 4096 frames rather
+ * than at every frame. Contiguous runs are found by scanning the bitmap,
+ * skipping words with no free frames.
+ */
+public class BitmapFrameAllocator extends FrameAllocator {
+    /**
+     * Allocate a new bitmap allocator for every physical frame of the
+     * machine.
+     */
+    public BitmapFrameAllocator() {
+	this(Machine.processor().getNumPhysPages());
+    }
+
+    /**
+     * Allocate a new bitmap allocator.
+     *
+     * @param	numFrames	the number of physical frames.
+     */
+    public BitmapFrameAllocator(int numFrames) {
+	super(numFrames);
+
+	free = new long[(numFrames + 63) / 64];
+	summary = new long[(free.length + 63) / 64];
+
+	// 多出来的位保持为 0，永远不会被分配
+	for (int frame=0; frame<numFrames; frame++)
+	    setFree(frame);
+    }
+
+    protected int allocateFrame() {
+	for (int i=0; i<summary.length; i++) {
+	    if (summary[i] != 0) {
+		int word = i*64 + Long.numberOfTrailingZeros(summary[i]);
+		int frame = word*64 + Long.numberOfTrailingZeros(free[word]);
+		setAllocated(frame);
+		return frame;
+	    }
+	}
+
+	return -1;
+    }
+
+    protected int allocateFrames(int count) {
+	int start = 0, length = 0;
+
+	for (int frame=0; frame<numFrames; ) {
+	    // 整个字都已分配，直接跳过
+	    if ((frame & 63) == 0 && free[frame/64] == 0) {
+		length = 0;
+		frame += 64;
+		continue;
+	    }
+
+	    if (isFree(frame)) {
+		if (length == 0)
+		    start = frame;
+		if (++length == count) {
+		    for (int i=0; i<count; i++)
+			setAllocated(start + i);
+		    return start;
+		}
+	    }
+	    else {
+		length = 0;
+	    }
+	    frame++;
+	}
+
+	return -1;
+    }
+
+    protected void freeFrames(int first, int count) {
+	for (int i=0; i<count; i++)
+	    setFree(first + i);
+    }
+
+    protected int largestFreeRun() {
+	int largest = 0, length = 0;
+
+	for (int frame=0; frame<numFrames; ) {
+	    if ((frame & 63) == 0 && free[frame/64] == 0) {
+		length = 0;
+		frame += 64;
+		continue;
+	    }
+
+	    if (isFree(frame))
+		largest = Math.max(largest, ++length);
+	    else
+		length = 0;
+	    frame++;
+	}
+
+	return largest;
+    }
+
+    protected boolean isAllocated(int frame) {
+	return frame >= 0 && frame < numFrames && !isFree(frame);
+    }
+
+    private boolean isFree(int frame) {
+	return (free[frame/64] & (1L << (frame & 63))) != 0;
+    }
+
+    private void setFree(int frame) {
+	int word = frame/64;
+	free[word] |= 1L << (frame & 63);
+	summary[word/64] |= 1L << (word & 63);
+    }
+
+    private void setAllocated(int frame) {
+	int word = frame/64;
+	free[word] &= ~(1L << (frame & 63));
+	if (free[word] == 0)
+	    summary[word/64] &= ~(1L << (word & 63));
+    }
+
+    /** Bit <i>i</i> of word <i>w</i> is set if frame 64<i>w</i>+<i>i</i> is free. */
+    private long[] free;
+    /** Bit <i>i</i> of word <i>w</i> is set if <tt>free[64<i>w</i>+<i>i</i>]</tt> is not 0. */
+    private long[] summary;
+}
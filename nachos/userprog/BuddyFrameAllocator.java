@@ -0,0 +1,234 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+/**
+ * A frame allocator using the buddy system. Free memory is kept as aligned
+ * blocks of 2<sup><i>k</i></sup> frames, one free list per order <i>k</i>. A
+ * request is served from the smallest block that is large enough, splitting
+ * it in halves as needed, and a freed block is merged with its <i>buddy</i>,
+ * the other half of the block it was split from, whenever the buddy is free
+ * too. Free memory therefore stays in large contiguous blocks, and a run is
+ * found without scanning.
+ *
+ * <p>
+ * A run that is not a power of two is cut from the next larger block, and
+ * the unused tail is returned at once, so no frame is wasted by rounding.
+ */
+public class BuddyFrameAllocator extends FrameAllocator {
+    /**
+     * Allocate a new buddy allocator for every physical frame of the machine.
+     */
+    public BuddyFrameAllocator() {
+	this(Machine.processor().getNumPhysPages());
+    }
+
+    /**
+     * Allocate a new buddy allocator.
+     *
+     * @param	numFrames	the number of physical frames.
+     */
+    public BuddyFrameAllocator(int numFrames) {
+	super(numFrames);
+
+	maxOrder = 0;
+	while ((2 << maxOrder) <= numFrames)
+	    maxOrder++;
+
+	head = new int[maxOrder+1];
+	for (int k=0; k<=maxOrder; k++)
+	    head[k] = -1;
+
+	next = new int[numFrames];
+	prev = new int[numFrames];
+	freeOrder = new byte[numFrames];
+	allocated = new boolean[numFrames];
+
+	for (int frame=0; frame<numFrames; frame++) {
+	    freeOrder[frame] = -1;
+	    allocated[frame] = true;
+	}
+
+	// 物理页数不一定是 2 的幂，按对齐的块依次放入空闲链表
+	freeFrames(0, numFrames);
+    }
+
+    protected int allocateFrame() {
+	int block = takeBlock(0);
+	allocated[block] = true;
+	return block;
+    }
+
+    protected int allocateFrames(int count) {
+	int order = 0;
+	while ((1 << order) < count)
+	    order++;
+	if (order > maxOrder)
+	    return -1;
+
+	int block = takeBlock(order);
+	if (block < 0)
+	    return -1;
+
+	for (int i=0; i<(1 << order); i++)
+	    allocated[block + i] = true;
+
+	// 把用不到的尾部立即还回去
+	freeFrames(block + count, (1 << order) - count);
+	return block;
+    }
+
+    protected void freeFrames(int first, int count) {
+	int end = first + count;
+
+	while (first < end) {
+	    // 取从 first 开始、不超过 end 的最大对齐块
+	    int order = 0;
+	    while (order < maxOrder && (first & (1 << order)) == 0
+		   && first + (2 << order) <= end)
+		order++;
+
+	    for (int i=0; i<(1 << order); i++)
+		allocated[first + i] = false;
+	    freeBlock(first, order);
+
+	    first += 1 << order;
+	}
+    }
+
+    protected int largestFreeRun() {
+	for (int k=maxOrder; k>=0; k--) {
+	    if (head[k] >= 0)
+		return 1 << k;
+	}
+
+	return 0;
+    }
+
+    protected boolean isAllocated(int frame) {
+	return frame >= 0 && frame < numFrames && allocated[frame];
+    }
+
+    /**
+     * Return the number of free blocks of each order.
+     *
+     * @return	an array whose element <i>k</i> is the number of free blocks
+     *		of 2<sup><i>k</i></sup> frames.
+     */
+    public int[] getFreeBlocks() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int[] counts = new int[maxOrder+1];
+	for (int k=0; k<=maxOrder; k++) {
+	    for (int block=head[k]; block>=0; block=next[block])
+		counts[k]++;
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return counts;
+    }
+
+    /**
+     * Return the number of times two free buddies have been merged.
+     *
+     * @return	the number of merges.
+     */
+    public long getMerges() {
+	return merges;
+    }
+
+    /**
+     * Return the number of times a free block has been split in half.
+     *
+     * @return	the number of splits.
+     */
+    public long getSplits() {
+	return splits;
+    }
+
+    public String toString() {
+	return super.toString() + ", " + splits + " splits, " + merges
+	    + " merges";
+    }
+
+    /**
+     * Take a free block of the specified order, splitting a larger block if
+     * there is none.
+     *
+     * @param	order	the order of the block.
+     * @return	the first frame of the block, or -1 if no block is large
+     *		enough.
+     */
+    private int takeBlock(int order) {
+	int k = order;
+	while (k <= maxOrder && head[k] < 0)
+	    k++;
+	if (k > maxOrder)
+	    return -1;
+
+	int block = head[k];
+	unlink(block, k);
+
+	// 每次对半分，后一半放回低一阶的空闲链表
+	while (k > order) {
+	    k--;
+	    link(block + (1 << k), k);
+	    splits++;
+	}
+
+	return block;
+    }
+
+    /**
+     * Return a free block, merging it with its buddy for as long as the
+     * buddy is free too.
+     *
+     * @param	block	the first frame of the block.
+     * @param	order	the order of the block.
+     */
+    private void freeBlock(int block, int order) {
+	while (order < maxOrder) {
+	    int buddy = block ^ (1 << order);
+	    if (buddy + (1 << order) > numFrames || freeOrder[buddy] != order)
+		break;
+
+	    unlink(buddy, order);
+	    block = Math.min(block, buddy);
+	    order++;
+	    merges++;
+	}
+
+	link(block, order);
+    }
+
+    private void link(int block, int order) {
+	freeOrder[block] = (byte) order;
+	prev[block] = -1;
+	next[block] = head[order];
+	if (head[order] >= 0)
+	    prev[head[order]] = block;
+	head[order] = block;
+    }
+
+    private void unlink(int block, int order) {
+	freeOrder[block] = -1;
+	if (prev[block] >= 0)
+	    next[prev[block]] = next[block];
+	else
+	    head[order] = next[block];
+	if (next[block] >= 0)
+	    prev[next[block]] = prev[block];
+    }
+
+    /** The order of the largest block that fits in physical memory. */
+    private int maxOrder;
+    /** The first free block of each order, or -1. */
+    private int[] head;
+    /** The next and previous free blocks of the same order, by first frame. */
+    private int[] next, prev;
+    /** The order of the free block starting at each frame, or -1. */
+    private byte[] freeOrder;
+    private boolean[] allocated;
+    private long splits = 0;
+    private long merges = 0;
+}
@@ -0,0 +1,300 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+/**
+ * Keeps track of which frames of physical memory are free. Frames can be
+ * allocated one at a time, several at a time, or as a run of contiguous
+ * frames.
+ *
+ * <p>
+ * Every operation disables interrupts while it runs, so an allocator can be
+ * shared by all processes without a lock. The allocator also counts what it
+ * has done, so that allocators can be compared under the same load.
+ */
+public abstract class FrameAllocator {
+    /**
+     * Allocate a new frame allocator with every frame free.
+     *
+     * @param	numFrames	the number of physical frames.
+     */
+    public FrameAllocator(int numFrames) {
+	Lib.assertTrue(numFrames >= 0);
+
+	this.numFrames = numFrames;
+	numFree = numFrames;
+    }
+
+    /**
+     * Allocate one frame.
+     *
+     * @return	the frame number, or -1 if every frame is in use.
+     */
+    public int allocate() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int frame = numFree > 0 ? allocateFrame() : -1;
+	if (frame >= 0)
+	    allocated(1);
+	else
+	    failures++;
+
+	Machine.interrupt().restore(intStatus);
+	return frame;
+    }
+
+    /**
+     * Allocate <i>count</i> frames, which need not be contiguous. Either all
+     * of them are allocated or none are.
+     *
+     * @param	count	the number of frames.
+     * @return	the frame numbers, or <tt>null</tt> if there are not enough
+     *		free frames.
+     */
+    public int[] allocate(int count) {
+	Lib.assertTrue(count >= 0);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	int[] frames = null;
+	if (count <= numFree) {
+	    frames = new int[count];
+	    for (int i=0; i<count; i++) {
+		frames[i] = allocateFrame();
+		Lib.assertTrue(frames[i] >= 0);
+	    }
+	    allocated(count);
+	}
+	else {
+	    failures++;
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return frames;
+    }
+
+    /**
+     * Allocate <i>count</i> contiguous frames.
+     *
+     * @param	count	the number of frames.
+     * @return	the first frame of the run, or -1 if there is no free run
+     *		that long.
+     */
+    public int allocateRun(int count) {
+	Lib.assertTrue(count > 0);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	int first = count <= numFree ? allocateFrames(count) : -1;
+	if (first >= 0) {
+	    allocated(count);
+	    runAllocations++;
+	}
+	else {
+	    failures++;
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return first;
+    }
+
+    /**
+     * Free one frame.
+     *
+     * @param	frame	the frame to free, which must be allocated.
+     */
+    public void free(int frame) {
+	freeRun(frame, 1);
+    }
+
+    /**
+     * Free every frame in <i>frames</i>.
+     *
+     * @param	frames	the frames to free, which must all be allocated.
+     */
+    public void free(int[] frames) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	for (int i=0; i<frames.length; i++) {
+	    Lib.assertTrue(isAllocated(frames[i]));
+	    freeFrames(frames[i], 1);
+	}
+	numFree += frames.length;
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Free <i>count</i> contiguous frames.
+     *
+     * @param	first	the first frame of the run.
+     * @param	count	the number of frames, all of which must be allocated.
+     */
+    public void freeRun(int first, int count) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	for (int i=0; i<count; i++)
+	    Lib.assertTrue(isAllocated(first + i));
+	freeFrames(first, count);
+	numFree += count;
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Return the number of physical frames.
+     *
+     * @return	the number of frames.
+     */
+    public int getNumFrames() {
+	return numFrames;
+    }
+
+    /**
+     * Return the number of free frames.
+     *
+     * @return	the number of free frames.
+     */
+    public int getFreeFrames() {
+	return numFree;
+    }
+
+    /**
+     * Return the largest number of frames that have been in use at once.
+     *
+     * @return	the peak number of allocated frames.
+     */
+    public int getPeakUsed() {
+	return peakUsed;
+    }
+
+    /**
+     * Return the total number of frames allocated so far.
+     *
+     * @return	the number of frames allocated.
+     */
+    public long getAllocations() {
+	return allocations;
+    }
+
+    /**
+     * Return the number of requests for contiguous runs that succeeded.
+     *
+     * @return	the number of runs allocated.
+     */
+    public long getRunAllocations() {
+	return runAllocations;
+    }
+
+    /**
+     * Return the number of requests that could not be met.
+     *
+     * @return	the number of failed requests.
+     */
+    public long getFailures() {
+	return failures;
+    }
+
+    /**
+     * Return the length of the longest run that <tt>allocateRun()</tt> could
+     * allocate right now.
+     *
+     * @return	the number of frames in the largest free run.
+     */
+    public int getLargestFreeRun() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int largest = numFree > 0 ? largestFreeRun() : 0;
+
+	Machine.interrupt().restore(intStatus);
+	return largest;
+    }
+
+    /**
+     * Return how badly free memory is fragmented: 0 if all free frames could
+     * be allocated as one run, approaching 1 as the free frames are scattered
+     * into ever smaller runs.
+     *
+     * @return	<tt>1 - getLargestFreeRun() / getFreeFrames()</tt>, or 0 if
+     *		no frame is free.
+     */
+    public double getFragmentation() {
+	int free = numFree;
+	if (free == 0)
+	    return 0;
+
+	return 1 - (double) getLargestFreeRun() / free;
+    }
+
+    /**
+     * Describe how the allocator has been used.
+     *
+     * @return	a one-line summary of the usage statistics.
+     */
+    public String toString() {
+	return getClass().getSimpleName() + ": " + (numFrames - numFree)
+	    + "/" + numFrames + " frames used, peak " + peakUsed
+	    + ", " + allocations + " allocated, " + runAllocations
+	    + " runs, " + failures + " failed, largest free run "
+	    + getLargestFreeRun() + ", fragmentation "
+	    + Math.round(getFragmentation()*100) + "%";
+    }
+
+    private void allocated(int count) {
+	numFree -= count;
+	allocations += count;
+	peakUsed = Math.max(peakUsed, numFrames - numFree);
+    }
+
+    /**
+     * Take one free frame. Called with interrupts disabled, and only when
+     * at least one frame is free.
+     *
+     * @return	the frame number.
+     */
+    protected abstract int allocateFrame();
+
+    /**
+     * Take <i>count</i> contiguous free frames. Called with interrupts
+     * disabled, and only when at least <i>count</i> frames are free.
+     *
+     * @param	count	the number of frames.
+     * @return	the first frame of the run, or -1 if there is no free run
+     *		that long.
+     */
+    protected abstract int allocateFrames(int count);
+
+    /**
+     * Return <i>count</i> contiguous allocated frames. Called with interrupts
+     * disabled.
+     *
+     * @param	first	the first frame of the run.
+     * @param	count	the number of frames.
+     */
+    protected abstract void freeFrames(int first, int count);
+
+    /**
+     * Return the length of the longest run that <tt>allocateFrames()</tt>
+     * could allocate. Called with interrupts disabled, and only when at least
+     * one frame is free.
+     *
+     * @return	the number of frames in the largest free run.
+     */
+    protected abstract int largestFreeRun();
+
+    /**
+     * Test if the specified frame is allocated.
+     *
+     * @param	frame	the frame number.
+     * @return	<tt>true</tt> if the frame is in range and allocated.
+     */
+    protected abstract boolean isAllocated(int frame);
+
+    /** The number of physical frames. */
+    protected int numFrames;
+    private int numFree;
+    private int peakUsed = 0;
+    private long allocations = 0;
+    private long runAllocations = 0;
+    private long failures = 0;
+}
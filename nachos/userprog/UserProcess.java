@@ -80,7 +80,8 @@ public class UserProcess {
 	if (!load(name, args))
 	    return false;
 	
-	new UThread(this).setName(name).fork();
+	thread = new UThread(this);
+	thread.setName(name).fork();
 
 	return true;
     }
@@ -189,6 +190,9 @@ public class UserProcess {
 			// 比较未读取的内容与当页未使用的空间，取较小值用于数据转移
 			int amount = Math.min(length - successRead, pageRemain);
 
+			// 后续页的物理页连续时一并复制
+			amount = extendTransfer(pageNum, amount, length - successRead, false);
+
 			// 计算真实地址
 			int realAddress = pageTable[pageNum].ppn * pageSize + pageOffset;
 
@@ -263,6 +267,9 @@ public class UserProcess {
 			// 比较未读取的内容与当页未使用的空间，取较小值用于数据转移
 			int amount = Math.min(length - successWrite, pageRemain);
 
+			// 后续页的物理页连续时一并复制
+			amount = extendTransfer(pageNum, amount, length - successWrite, true);
+
 			// 计算真实地址
 			int realAddress = pageTable[pageNum].ppn * pageSize + pageOffset;
 
@@ -281,6 +288,31 @@ public class UserProcess {
 		return successWrite;
     }
 
+    /**
+     * Extend a transfer that starts on page <i>vpn</i> over the following
+     * pages, for as long as they are mapped to consecutive physical frames,
+     * so that they can be copied with one <tt>arraycopy()</tt>.
+     *
+     * @param	vpn	the virtual page the transfer starts on.
+     * @param	amount	the number of bytes to transfer from page <i>vpn</i>.
+     * @param	remaining	the number of bytes still to transfer.
+     * @param	write	<tt>true</tt> if the transfer writes to memory, in
+     *			which case read-only pages end the run.
+     * @return	the number of bytes that can be transferred at once.
+     */
+    private int extendTransfer(int vpn, int amount, int remaining,
+			       boolean write) {
+		while (amount < remaining && vpn+1 < pageTable.length
+		       && pageTable[vpn+1].valid
+		       && pageTable[vpn+1].ppn == pageTable[vpn].ppn + 1
+		       && !(write && pageTable[vpn+1].readOnly)) {
+			vpn++;
+			amount = Math.min(remaining, amount + pageSize);
+		}
+
+		return amount;
+    }
+
     /**
      * Load the executable with the specified name into this process, and
      * prepare to pass it the specified arguments. Opens the executable, reads
@@ -376,18 +408,29 @@ public class UserProcess {
      *
      * @return	<tt>true</tt> if the sections were successfully loaded.
      */
-	private LinkedList<Integer> ownPageNums;
+	private int[] ownPages;
     protected boolean loadSections() {
 	if (numPages > Machine.processor().getNumPhysPages()) {
 	    coff.close();
 	    Lib.debug(dbgProcess, "\tinsufficient physical memory");
 	    return false;
 	}
-		// 获取空闲页号
-		ownPageNums = UserKernel.getFreePageNums(numPages);
+		// 尽量分配连续的物理页，读写内存时可以跨页一次复制
+		int first = UserKernel.frameAllocator.allocateRun(numPages);
+		if (first >= 0) {
+			ownPages = new int[numPages];
+			for (int i = 0; i < numPages; i++)
+				ownPages[i] = first + i;
+		}
+		else {
+			// 没有足够长的连续空闲页，退回到零散分配
+			ownPages = UserKernel.frameAllocator.allocate(numPages);
+		}
 
 		// 检查空闲页是否充足
-		if (ownPageNums.isEmpty()) {
+		if (ownPages == null) {
+			coff.close();
+			Lib.debug(dbgProcess, "\tinsufficient free frames");
 			return false;
 		}
 
@@ -396,7 +439,7 @@ public class UserProcess {
 
 		// 将数组中的页表初始化
 		for (int i = 0; i < numPages; i++) {
-			pageTable[i] = new TranslationEntry(i, ownPageNums.get(i), true, false, false, false);
+			pageTable[i] = new TranslationEntry(i, ownPages[i], true, false, false, false);
 		}
 
 		// 加载用户程序到内存
@@ -426,7 +469,10 @@ public class UserProcess {
 		coff.close();
 
 		// 将该进程拥有的页转换为空闲页
-		UserKernel.releaseOwnPageNums(ownPageNums);
+		if (ownPages != null) {
+			UserKernel.frameAllocator.free(ownPages);
+			ownPages = null;
+		}
     }    
 
     /**
@@ -761,7 +807,19 @@ public class UserProcess {
 	 * @param status 退出状态
 	 * @return 不返回
 	 */
-	private int handleExit(int status) {
+	protected int handleExit(int status) {
+		return handleExit(status, true);
+	}
+
+	/**
+	 * 结束当前进程，与 exit 系统调用相同，但可以指定是否为正常退出
+	 * 被内核杀死的进程不算正常退出，父进程的 join 返回 0
+	 *
+	 * @param status 退出状态
+	 * @param normal 是否为正常退出
+	 * @return 不返回
+	 */
+	protected int handleExit(int status, boolean normal) {
 		// 设置进程运行状态
 		this.status = status;
 
@@ -780,6 +838,11 @@ public class UserProcess {
 		// 释放内存
 		unloadSections();
 
+		// 退出实时调度，归还占用的处理器利用率
+		boolean intStatus = Machine.interrupt().disable();
+		ThreadedKernel.scheduler.setRealTime(0, 0);
+		Machine.interrupt().restore(intStatus);
+
 		// 如果这是最后一个进程
 		if (processMap.size() == 1) {
 			// 终止内核
@@ -805,8 +868,8 @@ public class UserProcess {
 		// 将该进程从映射表中移除
 		processMap.remove(this.processId);
 
-		// 设置正常退出状态
-		this.normalExit = true;
+		// 设置是否正常退出
+		this.normalExit = normal;
 
 		// 获得锁
 		joinLock.acquire();
@@ -916,9 +979,18 @@ public class UserProcess {
 		// 父进程持有子进程的锁
 		childProcess.joinLock.acquire();
 
+		// 等待期间把当前线程的优先级（彩票）借给子进程，使其尽快退出
+		boolean intStatus = Machine.interrupt().disable();
+		ThreadedKernel.scheduler.beginTransfer(KThread.currentThread(), childProcess.thread);
+		Machine.interrupt().restore(intStatus);
+
 		// 该进程在该锁的条件变量上等待，直到子进程退出
 		childProcess.joinCondition.sleep();
 
+		intStatus = Machine.interrupt().disable();
+		ThreadedKernel.scheduler.endTransfer(KThread.currentThread());
+		Machine.interrupt().restore(intStatus);
+
 		// 把锁释放掉
 		childProcess.joinLock.release();
 
@@ -936,6 +1008,28 @@ public class UserProcess {
 		return 0;
 	}
 
+	/**
+	 * 把当前线程设为周期性实时线程，每 period 个时钟单位中最多运行 budget 个时钟单位
+	 * budget 为 0 时恢复为普通线程
+	 *
+	 * 调度器不支持实时线程，或者准入控制拒绝时，返回 -1
+	 *
+	 * @param period 周期长度
+	 * @param budget 每个周期的预算
+	 * @return 0（成功），-1（失败）
+	 */
+	private int handleSetRealTime(int period, int budget) {
+		if (period < 0 || budget < 0) {
+			return -1;
+		}
+
+		boolean intStatus = Machine.interrupt().disable();
+		boolean admitted = ThreadedKernel.scheduler.setRealTime(period, budget);
+		Machine.interrupt().restore(intStatus);
+
+		return admitted ? 0 : -1;
+	}
+
     private static final int
         syscallHalt = 0,
 	syscallExit = 1,
@@ -946,7 +1040,8 @@ public class UserProcess {
 	syscallRead = 6,
 	syscallWrite = 7,
 	syscallClose = 8,
-	syscallUnlink = 9;
+	syscallUnlink = 9,
+	syscallSetRealTime = 14;
 
     /**
      * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -967,6 +1062,7 @@ public class UserProcess {
      *								</tt></td></tr>
      * <tr><td>8</td><td><tt>int  close(int fd);</tt></td></tr>
      * <tr><td>9</td><td><tt>int  unlink(char *name);</tt></td></tr>
+     * <tr><td>14</td><td><tt>int  setrt(int period, int budget);</tt></td></tr>
      * </table>
      * 
      * @param	syscall	the syscall number.
@@ -1001,6 +1097,8 @@ public class UserProcess {
 		case syscallUnlink:
 
 			return handleUnlink(a0);
+		case syscallSetRealTime:
+			return handleSetRealTime(a0, a1);
 
 
 	default:
@@ -1082,4 +1180,7 @@ public class UserProcess {
 
 	// 是否正常退出
 	private boolean normalExit = false;
+
+	// 运行该进程的线程
+	private UThread thread;
 }
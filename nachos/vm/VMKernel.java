@@ -5,8 +5,19 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.BitSet;
+
 /**
  * A kernel that can support multiple demand-paging user processes.
+ *
+ * <p>
+ * When no physical frame is free, a page is evicted with the clock
+ * algorithm, using the <tt>used</tt> bits the processor sets on each
+ * translation. An evicted page is written to the swap file only if it is
+ * dirty; a clean page is read again from wherever it last came from, be it
+ * the executable, the swap file, or nothing for a zero-filled page. Frames,
+ * the swap file, and every page table entry that may be evicted are guarded
+ * by <tt>pageLock</tt>.
  */
 public class VMKernel extends UserKernel {
     /**
@@ -21,6 +32,10 @@ public class VMKernel extends UserKernel {
      */
     public void initialize(String[] args) {
 	super.initialize(args);
+
+	pageLock = new Lock();
+	frameOwner = new VMProcess[Machine.processor().getNumPhysPages()];
+	frameVPN = new int[Machine.processor().getNumPhysPages()];
     }
 
     /**
@@ -41,11 +56,220 @@ public class VMKernel extends UserKernel {
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+	Lib.debug(dbgVM, "VMKernel: " + coffLoads + " pages loaded from COFF, "
+		  + zeroFills + " pages zero-filled, " + evictions
+		  + " evicted, " + swapOuts + " swapped out, " + swapIns
+		  + " swapped in, peak swap " + peakSlots + " pages");
+
 	super.terminate();
     }
 
+    /**
+     * Allocate a frame for the specified page, evicting another page if no
+     * frame is free. Called with <tt>pageLock</tt> held.
+     *
+     * @param	process	the process the page belongs to.
+     * @param	vpn	the virtual page number.
+     * @return	the frame number, or -1 if no page could be evicted.
+     */
+    static int allocateFrame(VMProcess process, int vpn) {
+	Lib.assertTrue(pageLock.isHeldByCurrentThread());
+
+	int ppn = UserKernel.frameAllocator.allocate();
+	if (ppn < 0)
+	    ppn = evictPage();
+	if (ppn < 0)
+	    return -1;
+
+	frameOwner[ppn] = process;
+	frameVPN[ppn] = vpn;
+	return ppn;
+    }
+
+    /**
+     * Free a frame allocated by <tt>allocateFrame()</tt>. Called with
+     * <tt>pageLock</tt> held.
+     *
+     * @param	ppn	the frame number.
+     */
+    static void freeFrame(int ppn) {
+	Lib.assertTrue(pageLock.isHeldByCurrentThread());
+
+	frameOwner[ppn] = null;
+	UserKernel.frameAllocator.free(ppn);
+    }
+
+    /**
+     * Choose a page with the clock algorithm, take it from its owner, and
+     * return its frame. The hand sweeps the frames, clearing each
+     * <tt>used</tt> bit it finds set, and stops at the first page whose bit
+     * is already clear.
+     *
+     * @return	the frame of the evicted page, or -1 if there is none.
+     */
+    private static int evictPage() {
+	// 先把 TLB 中的 used/dirty 位写回页表，否则时钟看到的是旧值
+	flushTLB();
+
+	int numFrames = frameOwner.length;
+	for (int i=0; i<2*numFrames; i++) {
+	    int ppn = clockHand;
+	    clockHand = (clockHand+1) % numFrames;
+
+	    VMProcess owner = frameOwner[ppn];
+	    if (owner == null)
+		continue;
+
+	    TranslationEntry entry = owner.getEntry(frameVPN[ppn]);
+	    if (entry.used) {
+		entry.used = false;
+		continue;
+	    }
+
+	    if (!owner.evict(frameVPN[ppn]))
+		return -1;
+
+	    Lib.debug(dbgVM, "\tevicted page " + frameVPN[ppn] + " from frame "
+		      + ppn);
+	    evictions++;
+	    frameOwner[ppn] = null;
+	    return ppn;
+	}
+
+	return -1;
+    }
+
+    /**
+     * Copy the used and dirty bits of a TLB entry, which the processor sets
+     * on its own copy, back to the page table of the page's owner, found
+     * through the inverted page table.
+     *
+     * @param	number	the index into the TLB.
+     */
+    static void syncTLBEntry(int number) {
+	TranslationEntry entry = Machine.processor().readTLBEntry(number);
+	if (!entry.valid)
+	    return;
+
+	VMProcess owner = frameOwner[entry.ppn];
+	if (owner != null && frameVPN[entry.ppn] == entry.vpn) {
+	    TranslationEntry pte = owner.getEntry(entry.vpn);
+	    pte.used |= entry.used;
+	    pte.dirty |= entry.dirty;
+	}
+    }
+
+    /**
+     * Copy the used and dirty bits of every TLB entry back to the page
+     * tables, and then invalidate the TLB. Does nothing if the processor has
+     * no TLB.
+     */
+    static void flushTLB() {
+	Processor processor = Machine.processor();
+	if (!processor.hasTLB())
+	    return;
+
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    syncTLBEntry(i);
+	    processor.writeTLBEntry(i, new TranslationEntry());
+	}
+    }
+
+    /**
+     * Allocate a page of the swap file, opening the file the first time.
+     * Called with <tt>pageLock</tt> held.
+     *
+     * @return	the swap slot, or -1 if the swap file cannot be opened.
+     */
+    static int allocateSwapSlot() {
+	if (swapFile == null) {
+	    swapFile = ThreadedKernel.fileSystem.open(swapFileName, true);
+	    if (swapFile == null)
+		return -1;
+
+	    // 关机时删除交换文件
+	    Machine.addHaltHandler(new Runnable() {
+		    public void run() {
+			swapFile.close();
+			ThreadedKernel.fileSystem.remove(swapFileName);
+		    }
+		});
+	}
+
+	int slot = swapSlots.nextClearBit(0);
+	swapSlots.set(slot);
+	peakSlots = Math.max(peakSlots, slot+1);
+	return slot;
+    }
+
+    /**
+     * Free a page of the swap file. Called with <tt>pageLock</tt> held.
+     *
+     * @param	slot	the swap slot.
+     */
+    static void freeSwapSlot(int slot) {
+	swapSlots.clear(slot);
+    }
+
+    /**
+     * Write a frame to a page of the swap file. Called with
+     * <tt>pageLock</tt> held.
+     *
+     * @param	slot	the swap slot.
+     * @param	ppn	the frame to write.
+     * @return	<tt>true</tt> if the whole page was written.
+     */
+    static boolean swapOut(int slot, int ppn) {
+	swapOuts++;
+	return swapFile.write(slot*pageSize, Machine.processor().getMemory(),
+			      ppn*pageSize, pageSize) == pageSize;
+    }
+
+    /**
+     * Read a page of the swap file into a frame. Called with
+     * <tt>pageLock</tt> held.
+     *
+     * @param	slot	the swap slot.
+     * @param	ppn	the frame to read into.
+     * @return	<tt>true</tt> if the whole page was read.
+     */
+    static boolean swapIn(int slot, int ppn) {
+	swapIns++;
+	return swapFile.read(slot*pageSize, Machine.processor().getMemory(),
+			     ppn*pageSize, pageSize) == pageSize;
+    }
+
+    /**
+     * Guards the frames, the swap file, and the page tables of all
+     * processes against eviction while a page is being brought in.
+     */
+    static Lock pageLock;
+
+    /** The process owning each frame, or <tt>null</tt> if it is free. */
+    private static VMProcess[] frameOwner;
+    /** The virtual page held in each frame. */
+    private static int[] frameVPN;
+    /** The next frame the clock hand will look at. */
+    private static int clockHand = 0;
+
+    private static String swapFileName =
+	Config.getString("VMKernel.swapFile", "nachos.swap");
+    private static OpenFile swapFile = null;
+    /** Bit <i>i</i> is set if page <i>i</i> of the swap file is in use. */
+    private static BitSet swapSlots = new BitSet();
+
+    /** The number of pages loaded from an executable on demand. */
+    static long coffLoads = 0;
+    /** The number of stack, argument and bss pages zero-filled on demand. */
+    static long zeroFills = 0;
+    private static long evictions = 0;
+    private static long swapOuts = 0;
+    private static long swapIns = 0;
+    private static int peakSlots = 0;
+
     // dummy variables to make javac smarter
     private static VMProcess dummy1 = null;
 
+    private static final int pageSize = Processor.pageSize;
     private static final char dbgVM = 'v';
 }
@@ -5,6 +5,8 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.Arrays;
+
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
  */
@@ -22,6 +24,9 @@ public class VMProcess extends UserProcess {
      */
     public void saveState() {
 	super.saveState();
+
+	// TLB 不区分进程，切换前把用过的位写回页表并清空
+	VMKernel.flushTLB();
     }
 
     /**
@@ -29,7 +34,8 @@ public class VMProcess extends UserProcess {
      * <tt>UThread.restoreState()</tt>.
      */
     public void restoreState() {
-	super.restoreState();
+	if (!Machine.processor().hasTLB())
+	    super.restoreState();
     }
 
     /**
@@ -39,16 +45,296 @@ public class VMProcess extends UserProcess {
      * @return	<tt>true</tt> if successful.
      */
     protected boolean loadSections() {
-	return super.loadSections();
+	// 不分配物理页，所有页在第一次访问时才装入
+	pageTable = new TranslationEntry[numPages];
+	swapSlot = new int[numPages];
+	for (int vpn=0; vpn<numPages; vpn++) {
+	    pageTable[vpn] = new TranslationEntry(vpn, -1, false, false,
+						  false, false);
+	    swapSlot[vpn] = -1;
+	}
+
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    CoffSection section = coff.getSection(s);
+
+	    Lib.debug(dbgProcess, "\tdemand-paging " + section.getName()
+		      + " section (" + section.getLength() + " pages)");
+
+	    for (int i=0; i<section.getLength(); i++)
+		pageTable[section.getFirstVPN()+i].readOnly =
+		    section.isReadOnly();
+	}
+
+	return true;
     }
 
     /**
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
     protected void unloadSections() {
-	super.unloadSections();
+	coff.close();
+
+	VMKernel.pageLock.acquire();
+
+	VMKernel.flushTLB();
+	for (int vpn=0; vpn<numPages; vpn++) {
+	    if (pageTable[vpn].valid) {
+		VMKernel.freeFrame(pageTable[vpn].ppn);
+		pageTable[vpn].valid = false;
+	    }
+	    if (swapSlot[vpn] >= 0) {
+		VMKernel.freeSwapSlot(swapSlot[vpn]);
+		swapSlot[vpn] = -1;
+	    }
+	}
+
+	VMKernel.pageLock.release();
     }    
 
+    /**
+     * Transfer data from this process's virtual memory to the specified
+     * array, first loading any page of the range that is not yet in memory.
+     *
+     * @param	vaddr	the first byte of virtual memory to read.
+     * @param	data	the array where the data will be stored.
+     * @param	offset	the first byte to write in the array.
+     * @param	length	the number of bytes to transfer from virtual memory to
+     *			the array.
+     * @return	the number of bytes successfully transferred.
+     */
+    public int readVirtualMemory(int vaddr, byte[] data, int offset,
+				 int length) {
+	Lib.assertTrue(offset >= 0 && length >= 0 &&
+		       offset + length <= data.length);
+
+	VMKernel.pageLock.acquire();
+
+	int transferred = 0;
+	while (transferred < length) {
+	    int vpn = Processor.pageFromAddress(vaddr + transferred);
+	    if (vpn >= numPages || !pageIn(vpn))
+		break;
+
+	    // 每次只复制一页，持有 pageLock 期间该页不会被换出
+	    int amount = Math.min(length - transferred, pageSize -
+				  Processor.offsetFromAddress(vaddr + transferred));
+	    int copied = super.readVirtualMemory(vaddr + transferred, data,
+						 offset + transferred, amount);
+	    pageTable[vpn].used = true;
+
+	    transferred += copied;
+	    if (copied < amount)
+		break;
+	}
+
+	VMKernel.pageLock.release();
+	return transferred;
+    }
+
+    /**
+     * Transfer data from the specified array to this process's virtual
+     * memory, first loading any page of the range that is not yet in
+     * memory.
+     *
+     * @param	vaddr	the first byte of virtual memory to write.
+     * @param	data	the array containing the data to transfer.
+     * @param	offset	the first byte to transfer from the array.
+     * @param	length	the number of bytes to transfer from the array to
+     *			virtual memory.
+     * @return	the number of bytes successfully transferred.
+     */
+    public int writeVirtualMemory(int vaddr, byte[] data, int offset,
+				  int length) {
+	Lib.assertTrue(offset >= 0 && length >= 0 &&
+		       offset + length <= data.length);
+
+	VMKernel.pageLock.acquire();
+
+	int transferred = 0;
+	while (transferred < length) {
+	    int vpn = Processor.pageFromAddress(vaddr + transferred);
+	    if (vpn >= numPages || !pageIn(vpn))
+		break;
+
+	    int amount = Math.min(length - transferred, pageSize -
+				  Processor.offsetFromAddress(vaddr + transferred));
+	    int copied = super.writeVirtualMemory(vaddr + transferred, data,
+						  offset + transferred, amount);
+	    if (copied > 0) {
+		pageTable[vpn].used = true;
+		pageTable[vpn].dirty = true;
+	    }
+
+	    transferred += copied;
+	    if (copied < amount)
+		break;
+	}
+
+	VMKernel.pageLock.release();
+	return transferred;
+    }
+
+    /**
+     * Make sure the specified page is in physical memory, evicting another
+     * page if needed. A page that has been swapped out is read from the swap
+     * file, a page of a COFF section is loaded from the executable, and any
+     * other page, which belongs to the stack or the arguments, is
+     * zero-filled. Called with <tt>VMKernel.pageLock</tt> held.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	<tt>true</tt> if the page is in memory, or <tt>false</tt> if
+     *		no frame could be freed for it.
+     */
+    protected boolean pageIn(int vpn) {
+	TranslationEntry entry = pageTable[vpn];
+	if (entry.valid)
+	    return true;
+
+	int ppn = VMKernel.allocateFrame(this, vpn);
+	if (ppn < 0)
+	    return false;
+
+	// 换出过的页从交换文件读回，交换槽保留，干净时再次换出不必写回
+	if (swapSlot[vpn] >= 0) {
+	    if (!VMKernel.swapIn(swapSlot[vpn], ppn)) {
+		VMKernel.freeFrame(ppn);
+		return false;
+	    }
+	    mapPage(entry, ppn);
+	    return true;
+	}
+
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    CoffSection section = coff.getSection(s);
+	    int spn = vpn - section.getFirstVPN();
+
+	    if (spn >= 0 && spn < section.getLength()) {
+		// 未初始化的段（bss）由 loadPage 自己填零
+		section.loadPage(spn, ppn);
+		if (section.isInitialzed())
+		    VMKernel.coffLoads++;
+		else
+		    VMKernel.zeroFills++;
+		mapPage(entry, ppn);
+		return true;
+	    }
+	}
+
+	// 栈和参数页只需填零
+	byte[] memory = Machine.processor().getMemory();
+	Arrays.fill(memory, ppn*pageSize, (ppn+1)*pageSize, (byte) 0);
+	VMKernel.zeroFills++;
+	mapPage(entry, ppn);
+	return true;
+    }
+
+    /**
+     * Return the page table entry of the specified page, for the clock
+     * algorithm. Called with <tt>VMKernel.pageLock</tt> held.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the page table entry.
+     */
+    TranslationEntry getEntry(int vpn) {
+	return pageTable[vpn];
+    }
+
+    /**
+     * Take the specified page out of memory, writing it to the swap file
+     * first if it is dirty. Called with <tt>VMKernel.pageLock</tt> held.
+     *
+     * @param	vpn	the virtual page number, which must be in memory.
+     * @return	<tt>true</tt> if the page was evicted, or <tt>false</tt> if it
+     *		could not be written to the swap file.
+     */
+    boolean evict(int vpn) {
+	TranslationEntry entry = pageTable[vpn];
+	Lib.assertTrue(entry.valid);
+
+	// 只有脏页需要写回，干净页可以从原来的地方重新读入
+	if (entry.dirty) {
+	    if (swapSlot[vpn] < 0)
+		swapSlot[vpn] = VMKernel.allocateSwapSlot();
+	    if (swapSlot[vpn] < 0 || !VMKernel.swapOut(swapSlot[vpn], entry.ppn))
+		return false;
+	}
+
+	entry.valid = false;
+	return true;
+    }
+
+    private void mapPage(TranslationEntry entry, int ppn) {
+	Lib.debug(dbgVM, "\tpage " + entry.vpn + " -> frame " + ppn);
+
+	entry.ppn = ppn;
+	entry.valid = true;
+	entry.used = false;
+	entry.dirty = false;
+    }
+
+    /**
+     * Handle a page fault or TLB miss on the specified virtual address.
+     *
+     * @param	cause	the exception that occurred.
+     * @param	vaddr	the virtual address that could not be translated.
+     */
+    private void handlePageFault(int cause, int vaddr) {
+	Processor processor = Machine.processor();
+	int vpn = Processor.pageFromAddress(vaddr);
+
+	// 超出地址空间，和其他意外异常一样处理
+	if (vpn >= numPages) {
+	    super.handleException(cause);
+	    return;
+	}
+
+	// 页已在内存中，只是 TLB 缺失：中间不会切换线程，不必加锁
+	if (pageTable[vpn].valid && processor.hasTLB()) {
+	    fillTLB(vpn);
+	    return;
+	}
+
+	VMKernel.pageLock.acquire();
+
+	// 不使用 TLB 时处理器直接查页表，重新执行该指令即可
+	boolean resident = pageIn(vpn);
+	if (resident && processor.hasTLB())
+	    fillTLB(vpn);
+
+	VMKernel.pageLock.release();
+
+	if (!resident) {
+	    Lib.debug(dbgVM, "\tout of memory and swap, killing process");
+	    handleExit(-1, false);
+	}
+    }
+
+    /**
+     * Load the translation for the specified page into the TLB, replacing an
+     * invalid entry if there is one and otherwise the entries in turn.
+     *
+     * @param	vpn	the virtual page number, which must be in memory.
+     */
+    private void fillTLB(int vpn) {
+	Processor processor = Machine.processor();
+
+	int victim = -1;
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    if (!processor.readTLBEntry(i).valid) {
+		victim = i;
+		break;
+	    }
+	}
+
+	if (victim < 0) {
+	    victim = nextVictim;
+	    nextVictim = (nextVictim+1) % processor.getTLBSize();
+	    VMKernel.syncTLBEntry(victim);
+	}
+
+	processor.writeTLBEntry(victim, pageTable[vpn]);
+    }
+
     /**
      * Handle a user exception. Called by
      * <tt>UserKernel.exceptionHandler()</tt>. The
@@ -61,12 +347,23 @@ public class VMProcess extends UserProcess {
 	Processor processor = Machine.processor();
 
 	switch (cause) {
+	case Processor.exceptionTLBMiss:
+	case Processor.exceptionPageFault:
+	    handlePageFault(cause,
+			    processor.readRegister(Processor.regBadVAddr));
+	    break;
+
 	default:
 	    super.handleException(cause);
 	    break;
 	}
     }
 	
+    /** The swap slot holding each page, or -1 if it has never been swapped out. */
+    private int[] swapSlot;
+    /** The TLB entry to replace next when none is invalid. */
+    private int nextVictim = 0;
+
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
     private static final char dbgVM = 'v';